@@ -0,0 +1,256 @@
+package cc.coopersoft.common;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Count-based circuit breaker. The outcomes of the last {@code window} calls are kept; once at least
+ * {@code minimumCalls} were recorded, the breaker opens when the failure rate or the latency percentile
+ * reaches its threshold. An open breaker rejects calls for {@code openDuration}, then lets
+ * {@code halfOpenProbes} calls through one at a time: if they all succeed within the latency threshold it
+ * closes, the first failure opens it again.
+ */
+public class CircuitBreaker {
+
+  private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+  public enum State {
+    CLOSED, HALF_OPEN, OPEN
+  }
+
+  /**
+   * @param failureRate       fraction of failed calls in the window that opens the breaker
+   * @param latencyThreshold  milliseconds, 0 to trip on failures only
+   * @param latencyPercentile percentile of the window compared to the latency threshold, e.g. 0.95
+   * @param openDuration      milliseconds the breaker stays open before probing
+   */
+  public record Settings(int window, int minimumCalls, double failureRate, long latencyThreshold,
+                         double latencyPercentile, long openDuration, int halfOpenProbes) {
+
+    /**
+     * Settings of a breaker that only counts calls, for callers that record on a breaker whether it is
+     * enabled or not.
+     */
+    public static final Settings NEVER_OPEN = new Settings(1, 1, Double.POSITIVE_INFINITY, 0, 1.0, 0, 1);
+
+    /**
+     * Reads the {@code breaker*} keys of a provider configuration, the latency and open duration in seconds.
+     */
+    public static Settings of(Config.Scope config) {
+      return of(config, 20L);
+    }
+
+    /**
+     * @param defaultLatencyThreshold seconds, used when {@code breakerLatencyThreshold} is not set
+     */
+    public static Settings of(Config.Scope config, long defaultLatencyThreshold) {
+      int window = Math.max(1, config.getInt("breakerWindow", 50));
+      return new Settings(window,
+          Math.max(1, Math.min(window, config.getInt("breakerMinimumCalls", 20))),
+          Double.parseDouble(config.get("breakerFailureRate", "0.5")),
+          TimeUnit.SECONDS.toMillis(config.getLong("breakerLatencyThreshold", defaultLatencyThreshold)),
+          Double.parseDouble(config.get("breakerLatencyPercentile", "0.95")),
+          TimeUnit.SECONDS.toMillis(config.getLong("breakerOpenDuration", 30L)),
+          Math.max(1, config.getInt("breakerHalfOpenProbes", 3)));
+    }
+  }
+
+  private final String name;
+  private final Settings settings;
+
+  private final boolean[] failures;
+  private final long[] latencies;
+  private int next;
+  private int size;
+  private int failureCount;
+
+  private State state = State.CLOSED;
+  private long openedAt;
+  private int probesInFlight;
+  private long probeStartedAt;
+  private int probesSucceeded;
+
+  private final LongAdder rejected = new LongAdder();
+
+  public CircuitBreaker(String name, Settings settings) {
+    this.name = name;
+    this.settings = settings;
+    this.failures = new boolean[settings.window()];
+    this.latencies = new long[settings.window()];
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return a permit to record the outcome on, or null when the breaker rejects the call
+   */
+  public Call tryAcquire() {
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (state == State.OPEN && now - openedAt >= settings.openDuration()) {
+        transition(State.HALF_OPEN);
+      }
+      if (state == State.CLOSED) {
+        return new Call(false);
+      }
+      // a probe whose outcome never came back must not keep the breaker half open for good
+      if (state == State.HALF_OPEN && (probesInFlight == 0 || now - probeStartedAt >= settings.openDuration())) {
+        probesInFlight = 1;
+        probeStartedAt = now;
+        return new Call(true);
+      }
+    }
+    rejected.increment();
+    return null;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  private synchronized void record(Call call, boolean failed, long latency) {
+    boolean slow = settings.latencyThreshold() > 0 && latency >= settings.latencyThreshold();
+    if (call.probe) {
+      probesInFlight = Math.max(0, probesInFlight - 1);
+      if (state != State.HALF_OPEN) {
+        return;
+      }
+      if (failed || slow) {
+        transition(State.OPEN);
+      } else if (++probesSucceeded >= settings.halfOpenProbes()) {
+        transition(State.CLOSED);
+      }
+      return;
+    }
+    if (state != State.CLOSED) {
+      // a call admitted before the breaker opened
+      return;
+    }
+
+    if (size == failures.length && failures[next]) {
+      failureCount--;
+    }
+    failures[next] = failed;
+    latencies[next] = latency;
+    if (failed) {
+      failureCount++;
+    }
+    next = (next + 1) % failures.length;
+    size = Math.min(size + 1, failures.length);
+
+    if (size >= settings.minimumCalls()
+        && ((double) failureCount / size >= settings.failureRate() || latencyTripped())) {
+      transition(State.OPEN);
+    }
+  }
+
+  private synchronized void release(Call call) {
+    if (call.probe) {
+      probesInFlight = Math.max(0, probesInFlight - 1);
+    }
+  }
+
+  private boolean latencyTripped() {
+    if (settings.latencyThreshold() <= 0) {
+      return false;
+    }
+    long[] sorted = Arrays.copyOf(latencies, size);
+    Arrays.sort(sorted);
+    return sorted[(int) Math.ceil(settings.latencyPercentile() * size) - 1] >= settings.latencyThreshold();
+  }
+
+  private void transition(State to) {
+    logger.info(String.format("Circuit breaker %s %s -> %s", name, state, to));
+    state = to;
+    Counter.builder("keycloak.phone.circuit.breaker.transitions")
+        .description("Circuit breaker state changes")
+        .tag("name", name)
+        .tag("state", to.name().toLowerCase())
+        .register(Metrics.globalRegistry)
+        .increment();
+    switch (to) {
+      case OPEN -> openedAt = System.currentTimeMillis();
+      case HALF_OPEN -> {
+        probesInFlight = 0;
+        probesSucceeded = 0;
+      }
+      case CLOSED -> {
+        next = 0;
+        size = 0;
+        failureCount = 0;
+      }
+    }
+  }
+
+  /**
+   * Exposes the state (0 closed, 1 half open, 2 open) and the rejected calls.
+   */
+  public CircuitBreaker registerMetrics() {
+    Gauge.builder("keycloak.phone.circuit.breaker.state", this, breaker -> breaker.getState().ordinal())
+        .description("Circuit breaker state: 0 closed, 1 half open, 2 open")
+        .tag("name", name)
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder("keycloak.phone.circuit.breaker.rejected", rejected, LongAdder::sum)
+        .description("Calls rejected by an open circuit breaker")
+        .tag("name", name)
+        .register(Metrics.globalRegistry);
+    return this;
+  }
+
+  /**
+   * One admitted call, timed from its acquisition. Only the first outcome recorded counts.
+   */
+  public final class Call {
+
+    private final boolean probe;
+    private final long start = System.currentTimeMillis();
+    private boolean recorded;
+
+    private Call(boolean probe) {
+      this.probe = probe;
+    }
+
+    public void success() {
+      complete(false);
+    }
+
+    public void failure() {
+      complete(true);
+    }
+
+    /**
+     * Gives the permit back without an outcome, for calls that failed for reasons that say nothing about
+     * the protected service.
+     */
+    public void ignore() {
+      if (markRecorded()) {
+        release(this);
+      }
+    }
+
+    private void complete(boolean failed) {
+      if (markRecorded()) {
+        record(this, failed, System.currentTimeMillis() - start);
+      }
+    }
+
+    private synchronized boolean markRecorded() {
+      if (recorded) {
+        return false;
+      }
+      recorded = true;
+      return true;
+    }
+  }
+}
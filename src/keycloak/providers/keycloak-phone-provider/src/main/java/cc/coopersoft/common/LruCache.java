@@ -0,0 +1,186 @@
+package cc.coopersoft.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Size-bounded, least-recently-used cache with a time to live, split in independently locked segments so
+ * that concurrent readers of different keys rarely contend. Keeps hit, miss and eviction counts.
+ */
+public class LruCache<K, V> {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment<K, V>[] segments;
+  private final long ttlMillis;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maximumSize upper bound of entries, spread evenly over the segments
+   * @param ttlMillis   lifetime of an entry since it was put, 0 for no expiry
+   */
+  @SuppressWarnings("unchecked")
+  public LruCache(int maximumSize, long ttlMillis) {
+    int count = Math.max(1, Math.min(SEGMENTS, maximumSize / SEGMENTS));
+    int capacity = Math.max(1, (maximumSize + count - 1) / count);
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment<>(capacity, evictions);
+    }
+    this.ttlMillis = ttlMillis;
+  }
+
+  private Segment<K, V> segment(K key) {
+    int hash = key.hashCode();
+    return segments[Math.floorMod(hash ^ (hash >>> 16), segments.length)];
+  }
+
+  /**
+   * @return the live value, or null when absent or expired
+   */
+  public V get(K key) {
+    V value = segment(key).get(key, System.currentTimeMillis());
+    (value == null ? misses : hits).increment();
+    return value;
+  }
+
+  /**
+   * Returns the live value or loads and caches it. The loader runs outside the segment lock and may run
+   * more than once for the same key under contention; a null result is not cached.
+   */
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    V value = get(key);
+    if (value == null) {
+      value = loader.apply(key);
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
+  public void put(K key, V value) {
+    long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+    segment(key).put(key, value, expiresAt);
+  }
+
+  public void remove(K key) {
+    segment(key).remove(key);
+  }
+
+  public void removeIf(BiPredicate<? super K, ? super V> predicate) {
+    for (Segment<K, V> segment : segments) {
+      segment.removeIf(predicate);
+    }
+  }
+
+  public void clear() {
+    removeIf((key, value) -> true);
+  }
+
+  public long size() {
+    long size = 0;
+    for (Segment<K, V> segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * Registers {@code <name>.gets} tagged with result hit or miss, {@code <name>.evictions} and
+   * {@code <name>.size} on the global meter registry.
+   */
+  public LruCache<K, V> registerMetrics(String name, String description) {
+    FunctionCounter.builder(name + ".gets", this, LruCache::hitCount)
+        .description(description)
+        .tag("result", "hit")
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder(name + ".gets", this, LruCache::missCount)
+        .description(description)
+        .tag("result", "miss")
+        .register(Metrics.globalRegistry);
+    FunctionCounter.builder(name + ".evictions", this, LruCache::evictionCount)
+        .register(Metrics.globalRegistry);
+    Gauge.builder(name + ".size", this, LruCache::size)
+        .register(Metrics.globalRegistry);
+    return this;
+  }
+
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  public long missCount() {
+    return misses.sum();
+  }
+
+  public long evictionCount() {
+    return evictions.sum();
+  }
+
+  private record Value<V>(V value, long expiresAt) {
+  }
+
+  private static final class Segment<K, V> {
+
+    private final Map<K, Value<V>> entries;
+
+    Segment(int capacity, LongAdder evictions) {
+      this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Value<V>> eldest) {
+          if (size() > capacity) {
+            evictions.increment();
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    synchronized V get(K key, long now) {
+      Value<V> value = entries.get(key);
+      if (value == null) {
+        return null;
+      }
+      if (value.expiresAt() <= now) {
+        entries.remove(key);
+        return null;
+      }
+      return value.value();
+    }
+
+    synchronized void put(K key, V value, long expiresAt) {
+      entries.put(key, new Value<>(value, expiresAt));
+    }
+
+    synchronized void remove(K key) {
+      entries.remove(key);
+    }
+
+    synchronized void removeIf(BiPredicate<? super K, ? super V> predicate) {
+      Iterator<Map.Entry<K, Value<V>>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<K, Value<V>> entry = iterator.next();
+        if (predicate.test(entry.getKey(), entry.getValue().value())) {
+          iterator.remove();
+        }
+      }
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+  }
+}
@@ -1,7 +1,7 @@
 package cc.coopersoft.keycloak.phone;
 
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -17,7 +17,12 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 
 import cc.coopersoft.common.OptionalUtils;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneNumberCache;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
 import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneUserAttributeLookup;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneUserIndexStore;
+import cc.coopersoft.keycloak.phone.providers.spi.PhonePolicy;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import jakarta.validation.constraints.NotNull;
 
@@ -26,12 +31,59 @@ public class Utils {
     private static final Logger logger = Logger.getLogger(Utils.class);
 
     public static Optional<UserModel> findUserByPhone(KeycloakSession session, RealmModel realm, String phoneNumber) {
+        var cache = PhoneUserCache.of(session);
+        if (cache != null) {
+            var entry = cache.get(realm.getId(), phoneNumber);
+            if (entry != null) {
+                if (entry.userId() == null) {
+                    return Optional.empty();
+                }
+                var user = session.users().getUserById(realm, entry.userId());
+                if (user != null) {
+                    return Optional.of(user);
+                }
+            }
+        }
+
+        var user = lookupUserByPhone(session, realm, phoneNumber);
+        if (cache != null) {
+            cache.put(realm.getId(), phoneNumber, new PhoneUserCache.Entry(user.map(UserModel::getId).orElse(null),
+                    user.map(u -> u.getFirstAttribute(UserModel.LOCALE)).orElse(null), indexPhoneNumber(session, phoneNumber)));
+        }
+        return user;
+    }
+
+    /**
+     * Locale of the user with the phone number, served from the phone user cache without loading the user
+     * when possible.
+     */
+    public static Optional<String> findUserLocaleByPhone(KeycloakSession session, RealmModel realm, String phoneNumber) {
+        var cache = PhoneUserCache.of(session);
+        var entry = cache == null ? null : cache.get(realm.getId(), phoneNumber);
+        if (entry != null) {
+            return Optional.ofNullable(entry.locale());
+        }
+        return findUserByPhone(session, realm, phoneNumber).map(u -> u.getFirstAttribute(UserModel.LOCALE));
+    }
+
+    /**
+     * Locale SMS messages are rendered in: the user's locale, else the realm default, else English.
+     */
+    public static String messageLocale(RealmModel realm, Optional<String> userLocale) {
+        return userLocale.orElseGet(() -> {
+            String realmLocale = realm.getDefaultLocale();
+            return (realmLocale != null && !realmLocale.isEmpty()) ? realmLocale : "en";
+        });
+    }
+
+    private static Optional<UserModel> lookupUserByPhone(KeycloakSession session, RealmModel realm, String phoneNumber) {
 
         var userProvider = session.users();
         Set<String> numbers = new HashSet<>();
         numbers.add(phoneNumber);
 
-        if (session.getProvider(PhoneProvider.class).compatibleMode()) {
+        boolean compatibleMode = session.getProvider(PhoneProvider.class).compatibleMode();
+        if (compatibleMode) {
             var phoneNumberUtil = PhoneNumberUtil.getInstance();
             try {
                 var parsedNumber = phoneNumberUtil.parse(phoneNumber, defaultRegion(session));
@@ -46,16 +98,49 @@ public class Utils {
             }
         }
 
+        PhoneUserIndexStore indexStore = new PhoneUserIndexStore(session);
+        if (indexStore.isUsable(realm)) {
+            // every variant of the number indexes to the same key; the attribute check keeps exact-match semantics
+            return indexStore.findUserIds(realm, indexPhoneNumber(session, phoneNumber)).stream()
+                    .map(id -> userProvider.getUserById(realm, id))
+                    .filter(Objects::nonNull)
+                    .filter(user -> user.getAttributeStream("phoneNumber").anyMatch(numbers::contains))
+                    .max(Utils::compareUsers);
+        }
+
+        if (compatibleMode) {
+            // one IN (...) query over all the variants, ranked by the database
+            return new PhoneUserAttributeLookup(session).findRankedUserIds(realm, numbers).stream()
+                    .map(id -> userProvider.getUserById(realm, id))
+                    .filter(Objects::nonNull)
+                    .findFirst();
+        }
+
         return numbers.stream().flatMap(number -> userProvider
                 .searchForUserByUserAttributeStream(realm, "phoneNumber", number))
-                .max((u1, u2) -> {
-                    var result = comparatorAttributesAnyMatch(u1, u2, "phoneNumberVerified", "true"::equals);
-                    if (result == 0) {
-                        result = comparatorAttributesAnyMatch(u1, u2, "phoneNumber", number -> number.startsWith("+"));
-                    }
-                    return result;
-                });
+                .max(Utils::compareUsers);
+
+    }
 
+    private static int compareUsers(UserModel u1, UserModel u2) {
+        var result = comparatorAttributesAnyMatch(u1, u2, "phoneNumberVerified", "true"::equals);
+        if (result == 0) {
+            result = comparatorAttributesAnyMatch(u1, u2, "phoneNumber", number -> number.startsWith("+"));
+        }
+        return result;
+    }
+
+    /**
+     * Key of a phone number in PHONE_USER_INDEX: its E.164 form, or the trimmed input when it does not parse
+     */
+    public static String indexPhoneNumber(KeycloakSession session, @NotNull String phoneNumber) {
+        var trimmed = phoneNumber.trim();
+        var phoneNumberUtil = PhoneNumberUtil.getInstance();
+        try {
+            return phoneNumberUtil.format(phoneNumberUtil.parse(trimmed, defaultRegion(session)), PhoneNumberFormat.E164);
+        } catch (NumberParseException e) {
+            return trimmed;
+        }
     }
 
 //    public static Optional<UserModel> findUserByPhone(UserProvider userProvider, RealmModel realm, String phoneNumber, String notIs){
@@ -70,17 +155,17 @@ public class Utils {
                 user2.getAttributeStream(attribute).anyMatch(predicate));
     }
 
-    private static Optional<String> localeToCountry(String locale) {
+    private static final Pattern LOCALE_COUNTRY = Pattern.compile("[^a-z]*\\-?([A-Z]{2,3})");
+
+    public static Optional<String> localeToCountry(String locale) {
         return OptionalUtils.ofBlank(locale).flatMap(l -> {
-            Pattern countryRegx = Pattern.compile("[^a-z]*\\-?([A-Z]{2,3})");
-            return Optional.of(countryRegx.matcher(l))
-                    .flatMap(m -> m.find() ? OptionalUtils.ofBlank(m.group(1)) : Optional.empty());
+            var matcher = LOCALE_COUNTRY.matcher(l);
+            return matcher.find() ? OptionalUtils.ofBlank(matcher.group(1)) : Optional.empty();
         });
     }
 
     private static String defaultRegion(KeycloakSession session) {
-        var defaultRegion = session.getProvider(PhoneProvider.class).defaultPhoneRegion();
-        return defaultRegion.orElseGet(() -> localeToCountry(session.getContext().getRealm().getDefaultLocale()).orElse(null));
+        return session.getProvider(PhoneProvider.class).phonePolicy().defaultRegion();
     }
 
     /**
@@ -89,44 +174,41 @@ public class Utils {
      *
      */
     public static String canonicalizePhoneNumber(KeycloakSession session, @NotNull String phoneNumber) throws PhoneNumberInvalidException {
-        var provider = session.getProvider(PhoneProvider.class);
+        var policy = session.getProvider(PhoneProvider.class).phonePolicy();
+        var key = PhoneNumberCache.Key.of(phoneNumber.trim(), policy);
+
+        var cache = PhoneNumberCache.of(session);
+        return cache == null ? canonicalize(key.phoneNumber(), policy)
+                : cache.canonicalize(key, k -> canonicalize(k.phoneNumber(), policy));
+    }
 
+    private static String canonicalize(String phoneNumber, PhonePolicy policy) throws PhoneNumberInvalidException {
         var phoneNumberUtil = PhoneNumberUtil.getInstance();
-        var resultPhoneNumber = phoneNumber.trim();
-        var defaultRegion = defaultRegion(session);
+        var resultPhoneNumber = phoneNumber;
+        var defaultRegion = policy.defaultRegion();
         logger.info(String.format("default region '%s' will be used", defaultRegion));
         try {
             // Parse the phone number using the default region
             var parsedNumber = phoneNumberUtil.parse(resultPhoneNumber, defaultRegion);
 
             // First validation: Use Google's libphonenumber to validate the number against country-specific rules
-            if (provider.validPhoneNumber() && !phoneNumberUtil.isValidNumber(parsedNumber)) {
+            if (policy.validPhoneNumber() && !phoneNumberUtil.isValidNumber(parsedNumber)) {
                 logger.info(String.format("Phone number [%s] Valid fail with google's libphonenumber", resultPhoneNumber));
                 throw new PhoneNumberInvalidException(PhoneNumberInvalidException.ErrorType.VALID_FAIL,
                         String.format("Phone number [%s] Valid fail with google's libphonenumber", resultPhoneNumber));
             }
 
             // Format the validated phone number according to configuration
-            var canonicalizeFormat = provider.canonicalizePhoneNumber();
-            try {
-                resultPhoneNumber = canonicalizeFormat
-                        .map(PhoneNumberFormat::valueOf)
-                        .map(format -> phoneNumberUtil.format(parsedNumber, format))
-                        .orElse(resultPhoneNumber);
-            } catch (RuntimeException e) {
-                logger.warn(String.format("canonicalize format param error! '%s' is not in supported list: %s, E164 Will be used.",
-                        Arrays.toString(PhoneNumberFormat.values()),
-                        canonicalizeFormat.orElse("")), e);
-                resultPhoneNumber = phoneNumberUtil.format(parsedNumber, PhoneNumberFormat.E164);
+            if (policy.format() != null) {
+                resultPhoneNumber = phoneNumberUtil.format(parsedNumber, policy.format());
             }
 
             // Second validation: Apply optional custom regex pattern for additional filtering
             // This allows administrators to restrict phone numbers beyond standard validation
-            var phoneNumberRegex = provider.phoneNumberRegex();
-            if (!phoneNumberRegex.map(resultPhoneNumber::matches).orElse(true)) {
-                logger.info(String.format("Phone number [%s] not match regex '%s'", resultPhoneNumber, phoneNumberRegex.orElse("")));
+            if (!policy.matches(resultPhoneNumber)) {
+                logger.info(String.format("Phone number [%s] not match regex '%s'", resultPhoneNumber, policy.regex().pattern()));
                 throw new PhoneNumberInvalidException(PhoneNumberInvalidException.ErrorType.NOT_SUPPORTED,
-                        String.format("Phone number [%s] not match regex '%s'", resultPhoneNumber, phoneNumberRegex.orElse("")));
+                        String.format("Phone number [%s] not match regex '%s'", resultPhoneNumber, policy.regex().pattern()));
             }
             return resultPhoneNumber;
         } catch (NumberParseException e) {
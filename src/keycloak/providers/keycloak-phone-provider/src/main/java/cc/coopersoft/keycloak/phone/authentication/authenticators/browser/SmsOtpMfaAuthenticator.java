@@ -40,12 +40,24 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
 
     private static final String PAGE = "login-sms-otp.ftl";
 
+    static final String CHALLENGE_PHONE_NUMBER = "SMS_OTP_CHALLENGE_PHONE_NUMBER";
+
+    /**
+     * When set, a challenge is recorded in the authentication session instead of resetting the stored
+     * credential, which is then only written once the code is validated.
+     */
+    private final boolean deferCredentialWrite;
+
+    public SmsOtpMfaAuthenticator(boolean deferCredentialWrite) {
+        this.deferCredentialWrite = deferCredentialWrite;
+    }
+
     protected boolean validateCookie(AuthenticationFlowContext context) {
         if (Utils.getOtpExpires(context.getSession()) <= 0) {
             return false;
         }
 
-        var invalid = PhoneOtpCredentialModel.getSmsOtpCredentialData(context.getUser())
+        var invalid = PhoneOtpCredentialModel.getSmsOtpCredentialData(context.getSession(), context.getUser())
                 .map(PhoneOtpCredentialModel.SmsOtpCredentialData::isSecretInvalid)
                 .orElse(true);
 
@@ -111,8 +123,8 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
         return (PhoneOtpCredentialProvider) session.getProvider(CredentialProvider.class, PhoneOtpCredentialProviderFactory.PROVIDER_ID);
     }
 
-    private String getCredentialPhoneNumber(UserModel user) {
-        return PhoneOtpCredentialModel.getSmsOtpCredentialData(user)
+    private String getCredentialPhoneNumber(KeycloakSession session, UserModel user) {
+        return PhoneOtpCredentialModel.getSmsOtpCredentialData(session, user)
                 .map(PhoneOtpCredentialModel.SmsOtpCredentialData::getPhoneNumber)
                 .orElseThrow(() -> new IllegalStateException("Not have OTP Credential"));
     }
@@ -125,7 +137,7 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
             return;
         }
 
-        String phoneNumber = getCredentialPhoneNumber(context.getUser());
+        String phoneNumber = getCredentialPhoneNumber(context.getSession(), context.getUser());
 
         boolean verified = OptionalUtils.ofBlank(context.getAuthenticationSession().getAuthNote(VERIFIED_PHONE_NUMBER))
                 .map(number -> number.equalsIgnoreCase(phoneNumber))
@@ -137,8 +149,10 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
 
         PhoneProvider phoneProvider = context.getSession().getProvider(PhoneProvider.class);
         try {
+            String locale = Utils.messageLocale(context.getRealm(),
+                    Optional.ofNullable(context.getUser().getFirstAttribute(UserModel.LOCALE)));
             int expires = phoneProvider.sendTokenCode(phoneNumber, context.getConnection().getRemoteAddr(),
-                    TokenCodeType.OTP, null);
+                    TokenCodeType.OTP, null, locale);
             context.form()
                     .setInfo("codeSent", phoneNumber)
                     .setAttribute("expires", expires)
@@ -151,8 +165,12 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
             context.form().setError(SupportPhonePages.Errors.FAIL.message());
         }
 
-        var credentialData = new PhoneOtpCredentialModel.SmsOtpCredentialData(phoneNumber, 0);
-        PhoneOtpCredentialModel.updateOtpCredential(context.getUser(), credentialData, null);
+        if (deferCredentialWrite) {
+            context.getAuthenticationSession().setAuthNote(CHALLENGE_PHONE_NUMBER, phoneNumber);
+        } else {
+            var credentialData = new PhoneOtpCredentialModel.SmsOtpCredentialData(phoneNumber, 0);
+            PhoneOtpCredentialModel.updateOtpCredential(context.getUser(), credentialData, null);
+        }
 
         Response challenge = challenge(context, phoneNumber);
         context.challenge(challenge);
@@ -164,7 +182,7 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
         String secret = formData.getFirst("code");
         String credentialId = formData.getFirst("credentialId");
 
-        String phoneNumber = getCredentialPhoneNumber(context.getUser());
+        String phoneNumber = getCredentialPhoneNumber(context.getSession(), context.getUser());
 
         if (credentialId == null || credentialId.isEmpty()) {
             var defaultOtpCredential = getCredentialProvider(context.getSession())
@@ -179,9 +197,15 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
             context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
         }
 
-        UserCredentialModel input = new UserCredentialModel(credentialId, getType(context.getSession()), secret);
-
-        boolean validated = getCredentialProvider(context.getSession()).isValid(context.getRealm(), context.getUser(), input);
+        boolean validated;
+        String challengedPhoneNumber = context.getAuthenticationSession().getAuthNote(CHALLENGE_PHONE_NUMBER);
+        if (challengedPhoneNumber != null && challengedPhoneNumber.equals(phoneNumber)) {
+            // the stored secret was left as is, the sent code is checked and written on success
+            validated = getCredentialProvider(context.getSession()).isValidSentCode(context.getUser(), secret);
+        } else {
+            UserCredentialModel input = new UserCredentialModel(credentialId, getType(context.getSession()), secret);
+            validated = getCredentialProvider(context.getSession()).isValid(context.getRealm(), context.getUser(), input);
+        }
 
         if (!validated) {
             context.form()
@@ -190,6 +214,7 @@ public class SmsOtpMfaAuthenticator implements Authenticator, CredentialValidato
             context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
             return;
         }
+        context.getAuthenticationSession().removeAuthNote(CHALLENGE_PHONE_NUMBER);
         setCookie(context, credentialId, secret);
         context.success();
     }
@@ -20,7 +20,7 @@ public class SmsOtpMfaAuthenticatorFactory implements AuthenticatorFactory, Conf
     public final static String PROVIDER_ID = "sms-otp-authenticator";
 
 //    public final static String COOKIE_MAX_AGE= "cookieMaxAge";
-    private final static SmsOtpMfaAuthenticator instance = new SmsOtpMfaAuthenticator();
+    private SmsOtpMfaAuthenticator instance = new SmsOtpMfaAuthenticator(false);
 
     @Override
     public String getDisplayType() {
@@ -69,6 +69,7 @@ public class SmsOtpMfaAuthenticatorFactory implements AuthenticatorFactory, Conf
 
     @Override
     public void init(Scope scope) {
+        instance = new SmsOtpMfaAuthenticator(scope.getBoolean("deferCredentialWrite", false));
     }
 
     @Override
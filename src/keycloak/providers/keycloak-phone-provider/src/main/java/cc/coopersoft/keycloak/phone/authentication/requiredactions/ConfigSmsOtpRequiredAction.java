@@ -36,7 +36,7 @@ public class ConfigSmsOtpRequiredAction implements RequiredActionProvider {
     @Override
     public void requiredActionChallenge(RequiredActionContext context) {
 
-        var userPhoneNumber = PhoneOtpCredentialModel.getSmsOtpCredentialData(context.getUser())
+        var userPhoneNumber = PhoneOtpCredentialModel.getSmsOtpCredentialData(context.getSession(), context.getUser())
             .map(PhoneOtpCredentialModel.SmsOtpCredentialData::getPhoneNumber)
             .orElseGet(() -> Optional.ofNullable(context.getUser())
                 .flatMap(user -> Optional.ofNullable(user.getFirstAttribute(SupportPhonePages.FIELD_PHONE_NUMBER)))
@@ -0,0 +1,67 @@
+package cc.coopersoft.keycloak.phone.credential;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.credential.dto.OTPSecretData;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decoded phone OTP credentials of one Keycloak session, so that an MFA step parses each stored credential
+ * at most once. Entries are keyed by credential id and checked against the raw JSON, a credential updated
+ * in the meantime is parsed again.
+ */
+public final class PhoneOtpCredentialDecoder {
+
+    private static final String ATTRIBUTE = PhoneOtpCredentialDecoder.class.getName();
+
+    static final ObjectReader CREDENTIAL_DATA_READER =
+            JsonSerialization.mapper.readerFor(PhoneOtpCredentialModel.SmsOtpCredentialData.class);
+    static final ObjectReader SECRET_DATA_READER =
+            JsonSerialization.mapper.readerFor(OTPSecretData.class);
+
+    private record Decoded<T>(String raw, T value) {
+    }
+
+    private final Map<String, Decoded<PhoneOtpCredentialModel.SmsOtpCredentialData>> credentialData = new HashMap<>();
+    private final Map<String, Decoded<OTPSecretData>> secretData = new HashMap<>();
+
+    private PhoneOtpCredentialDecoder() {
+    }
+
+    public static PhoneOtpCredentialDecoder of(KeycloakSession session) {
+        PhoneOtpCredentialDecoder decoder = session.getAttribute(ATTRIBUTE, PhoneOtpCredentialDecoder.class);
+        if (decoder == null) {
+            decoder = new PhoneOtpCredentialDecoder();
+            session.setAttribute(ATTRIBUTE, decoder);
+        }
+        return decoder;
+    }
+
+    public PhoneOtpCredentialModel.SmsOtpCredentialData credentialData(CredentialModel credential) throws IOException {
+        return decode(credentialData, credential.getId(), credential.getCredentialData(), CREDENTIAL_DATA_READER);
+    }
+
+    public OTPSecretData secretData(CredentialModel credential) throws IOException {
+        return decode(secretData, credential.getId(), credential.getSecretData(), SECRET_DATA_READER);
+    }
+
+    private static <T> T decode(Map<String, Decoded<T>> decoded, String id, String raw, ObjectReader reader) throws IOException {
+        if (raw == null) {
+            return null;
+        }
+        Decoded<T> entry = id == null ? null : decoded.get(id);
+        if (entry != null && entry.raw().equals(raw)) {
+            return entry.value();
+        }
+        T value = reader.readValue(raw);
+        if (id != null) {
+            decoded.put(id, new Decoded<>(raw, value));
+        }
+        return value;
+    }
+}
@@ -7,6 +7,7 @@ import jakarta.validation.constraints.NotNull;
 import lombok.Getter;
 import org.keycloak.common.util.Time;
 import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.dto.OTPSecretData;
 import org.keycloak.util.JsonSerialization;
@@ -32,11 +33,13 @@ public class PhoneOtpCredentialModel extends CredentialModel {
                 .getStoredCredentialsByTypeStream(PhoneOtpCredentialModel.TYPE).findFirst();
     }
 
-    public static Optional<PhoneOtpCredentialModel.SmsOtpCredentialData> getSmsOtpCredentialData(@NotNull UserModel user) {
+    public static Optional<PhoneOtpCredentialModel.SmsOtpCredentialData> getSmsOtpCredentialData(@NotNull KeycloakSession session,
+            @NotNull UserModel user) {
+        PhoneOtpCredentialDecoder decoder = PhoneOtpCredentialDecoder.of(session);
         return getOtpCredentialModel(user)
                 .map(credentialModel -> {
                     try {
-                        return JsonSerialization.readValue(credentialModel.getCredentialData(), PhoneOtpCredentialModel.SmsOtpCredentialData.class);
+                        return decoder.credentialData(credentialModel);
                     } catch (IOException e) {
                         throw new IllegalArgumentException(e);
                     }
@@ -48,14 +51,12 @@ public class PhoneOtpCredentialModel extends CredentialModel {
             String secretValue) {
         getOtpCredentialModel(user)
                 .ifPresent(credential -> {
-                    try {
-                        credential.setCredentialData(JsonSerialization.writeValueAsString(credentialData));
-                        credential.setSecretData(JsonSerialization.writeValueAsString(new OTPSecretData(secretValue)));
-                        PhoneOtpCredentialModel credentialModel = PhoneOtpCredentialModel.createFromCredentialModel(credential);
-                        user.credentialManager().updateStoredCredential(credentialModel);
-                    } catch (IOException ioe) {
-                        throw new RuntimeException(ioe);
-                    }
+                    PhoneOtpCredentialModel credentialModel = new PhoneOtpCredentialModel(credentialData, new OTPSecretData(secretValue));
+                    credentialModel.fillCredentialModelFields();
+                    credentialModel.setId(credential.getId());
+                    credentialModel.setUserLabel(credential.getUserLabel());
+                    credentialModel.setCreatedDate(credential.getCreatedDate());
+                    user.credentialManager().updateStoredCredential(credentialModel);
                 });
     }
 
@@ -68,25 +69,39 @@ public class PhoneOtpCredentialModel extends CredentialModel {
     }
 
     public static PhoneOtpCredentialModel createFromCredentialModel(CredentialModel credentialModel) {
+        try {
+            return createFromCredentialModel(credentialModel,
+                    PhoneOtpCredentialDecoder.CREDENTIAL_DATA_READER.readValue(credentialModel.getCredentialData()),
+                    PhoneOtpCredentialDecoder.SECRET_DATA_READER.readValue(credentialModel.getSecretData()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    public static PhoneOtpCredentialModel createFromCredentialModel(KeycloakSession session, CredentialModel credentialModel) {
+        PhoneOtpCredentialDecoder decoder = PhoneOtpCredentialDecoder.of(session);
         try {
-            SmsOtpCredentialData credentialData = JsonSerialization.readValue(credentialModel.getCredentialData(), SmsOtpCredentialData.class);
-            OTPSecretData secretData = JsonSerialization.readValue(credentialModel.getSecretData(), OTPSecretData.class);
-            PhoneOtpCredentialModel credential = new PhoneOtpCredentialModel(credentialData, secretData);
-
-            credential.setUserLabel(credentialModel.getUserLabel());
-            credential.setCreatedDate(credentialModel.getCreatedDate());
-            credential.setType(TYPE);
-            credential.setId(credentialModel.getId());
-            credential.setSecretData(credentialModel.getSecretData());
-            credential.setCredentialData(credentialModel.getCredentialData());
-
-            return credential;
+            return createFromCredentialModel(credentialModel,
+                    decoder.credentialData(credentialModel), decoder.secretData(credentialModel));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static PhoneOtpCredentialModel createFromCredentialModel(CredentialModel credentialModel,
+            SmsOtpCredentialData credentialData, OTPSecretData secretData) {
+        PhoneOtpCredentialModel credential = new PhoneOtpCredentialModel(credentialData, secretData);
+
+        credential.setUserLabel(credentialModel.getUserLabel());
+        credential.setCreatedDate(credentialModel.getCreatedDate());
+        credential.setType(TYPE);
+        credential.setId(credentialModel.getId());
+        credential.setSecretData(credentialModel.getSecretData());
+        credential.setCredentialData(credentialModel.getCredentialData());
+
+        return credential;
+    }
+
     private void fillCredentialModelFields() {
         try {
             setCredentialData(JsonSerialization.writeValueAsString(credentialData));
@@ -12,7 +12,6 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.dto.OTPSecretData;
-import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
 import java.util.Optional;
@@ -68,38 +67,42 @@ public class PhoneOtpCredentialProvider implements CredentialProvider<PhoneOtpCr
         }
 
         CredentialModel credential = user.credentialManager().getStoredCredentialById(input.getCredentialId());
-        var invalid = Optional.ofNullable(user.credentialManager().getStoredCredentialById(input.getCredentialId()))
-            .map(credentialModel -> {
-                try {
-                    return JsonSerialization.readValue(credentialModel.getCredentialData(), PhoneOtpCredentialModel.SmsOtpCredentialData.class);
-                } catch (IOException e) {
-                    throw new IllegalArgumentException(e);
-                }
-            })
-            .map(PhoneOtpCredentialModel.SmsOtpCredentialData::isSecretInvalid)
-            .filter(invalidSecret -> invalidSecret)
-            .orElse(false);
-        if (invalid){
-            try {
-                getTokenCodeService().validateCode(user, phoneNumber, code, TokenCodeType.OTP);
-                return true;
-            } catch (Exception e) {
-                return false;
-            }
+        if (credential == null) {
+            return false;
+        }
+        PhoneOtpCredentialDecoder decoder = PhoneOtpCredentialDecoder.of(session);
+        PhoneOtpCredentialModel.SmsOtpCredentialData credentialData;
+        OTPSecretData secretData;
+        try {
+            credentialData = decoder.credentialData(credential);
+            secretData = decoder.secretData(credential);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
         }
-        return Optional.ofNullable(credential.getSecretData())
-            .map(secretData -> {
-                try {
-                    return JsonSerialization.readValue(secretData, OTPSecretData.class);
-                } catch (IOException e) {
-                    throw new IllegalArgumentException(e);
-                }
-            })
-            .flatMap(secretData -> Optional.ofNullable(secretData.getValue()))
+        if (credentialData != null && credentialData.isSecretInvalid()){
+            return isValidSentCode(user, code);
+        }
+        return Optional.ofNullable(secretData)
+            .flatMap(data -> Optional.ofNullable(data.getValue()))
             .map(CredentialCode -> CredentialCode.equals(code))
             .orElse(false);
     }
 
+    /**
+     * Checks the code of the ongoing OTP process regardless of the stored secret, the credential is updated
+     * with the code when it matches.
+     */
+    public boolean isValidSentCode(UserModel user, String code) {
+        String phoneNumber = user.getFirstAttribute("phoneNumber");
+        if (phoneNumber == null || code == null) return false;
+        try {
+            getTokenCodeService().validateCode(user, phoneNumber, code, TokenCodeType.OTP);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     @Override
     public String getType() {
         return PhoneOtpCredentialModel.TYPE;
@@ -121,7 +124,7 @@ public class PhoneOtpCredentialProvider implements CredentialProvider<PhoneOtpCr
 
     @Override
     public PhoneOtpCredentialModel getCredentialFromModel(CredentialModel credentialModel) {
-        return PhoneOtpCredentialModel.createFromCredentialModel(credentialModel);
+        return PhoneOtpCredentialModel.createFromCredentialModel(session, credentialModel);
     }
 
     @Override
@@ -0,0 +1,71 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import org.keycloak.models.KeycloakSession;
+
+import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
+
+import cc.coopersoft.common.LruCache;
+import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
+import cc.coopersoft.keycloak.phone.providers.spi.PhonePolicy;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.impl.DefaultPhoneProviderFactory;
+
+/**
+ * Results of parsing, validating and formatting phone numbers with libphonenumber, shared by all sessions
+ * of the node. Invalid numbers are cached with their error type, so retries of a bad number are as cheap
+ * as retries of a good one.
+ */
+public class PhoneNumberCache {
+
+    /**
+     * Everything the outcome of canonicalization depends on.
+     */
+    public record Key(String phoneNumber, String defaultRegion, PhoneNumberFormat format, String regex, boolean validate) {
+
+        public static Key of(String phoneNumber, PhonePolicy policy) {
+            return new Key(phoneNumber, policy.defaultRegion(), policy.format(),
+                    policy.regex() == null ? null : policy.regex().pattern(), policy.validPhoneNumber());
+        }
+    }
+
+    private record Result(String canonical, PhoneNumberInvalidException.ErrorType errorType, String message) {
+    }
+
+    @FunctionalInterface
+    public interface Canonicalizer {
+        String canonicalize(Key key) throws PhoneNumberInvalidException;
+    }
+
+    private final LruCache<Key, Result> cache;
+
+    public PhoneNumberCache(int maximumSize, long ttlMillis) {
+        this.cache = new LruCache<Key, Result>(maximumSize, ttlMillis)
+                .registerMetrics("keycloak.phone.number.cache", "Phone number canonicalizations");
+    }
+
+    /**
+     * @return the cache of the default phone provider factory, or null when it is disabled
+     */
+    public static PhoneNumberCache of(KeycloakSession session) {
+        return session.getKeycloakSessionFactory().getProviderFactory(PhoneProvider.class)
+                instanceof DefaultPhoneProviderFactory factory ? factory.getNumberCache() : null;
+    }
+
+    public String canonicalize(Key key, Canonicalizer canonicalizer) throws PhoneNumberInvalidException {
+        Result result = cache.get(key);
+        if (result == null) {
+            try {
+                String canonical = canonicalizer.canonicalize(key);
+                cache.put(key, new Result(canonical, null, null));
+                return canonical;
+            } catch (PhoneNumberInvalidException e) {
+                cache.put(key, new Result(null, e.getErrorType(), e.getMessage()));
+                throw e;
+            }
+        }
+        if (result.errorType() != null) {
+            throw new PhoneNumberInvalidException(result.errorType(), result.message());
+        }
+        return result.canonical();
+    }
+}
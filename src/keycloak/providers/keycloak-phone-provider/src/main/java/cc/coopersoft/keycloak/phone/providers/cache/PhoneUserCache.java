@@ -0,0 +1,95 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import java.util.Collection;
+import java.util.Objects;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.KeycloakSession;
+
+import cc.coopersoft.common.LruCache;
+import cc.coopersoft.keycloak.phone.providers.events.PhoneUserIndexEventListenerProviderFactory;
+
+/**
+ * Node-local cache of phone number lookups per realm: the user the number resolved to (or none) and the
+ * user's locale. Entries expire after a short TTL and are dropped on every node, through the cluster event
+ * bus, when the phone number, verification or profile of a user changes.
+ */
+public class PhoneUserCache {
+
+    private static final Logger logger = Logger.getLogger(PhoneUserCache.class);
+
+    public static final String INVALIDATION_EVENTS = "PHONE_USER_CACHE_INVALIDATION";
+
+    /**
+     * @param userId        null when no user has the number
+     * @param indexedNumber E.164 form of the looked up number
+     */
+    public record Entry(String userId, String locale, String indexedNumber) {
+    }
+
+    private final LruCache<String, Entry> cache;
+
+    public PhoneUserCache(int maximumSize, long ttlMillis) {
+        this.cache = new LruCache<String, Entry>(maximumSize, ttlMillis)
+                .registerMetrics("keycloak.phone.user.cache", "Phone number to user lookups");
+    }
+
+    /**
+     * @return the cache of the node, or null when it is disabled
+     */
+    public static PhoneUserCache of(KeycloakSession session) {
+        var factory = (PhoneUserIndexEventListenerProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(EventListenerProvider.class, PhoneUserIndexEventListenerProviderFactory.PROVIDER_ID);
+        return factory == null ? null : factory.getUserCache();
+    }
+
+    private static String key(String realmId, String phoneNumber) {
+        return realmId + "::" + phoneNumber;
+    }
+
+    public Entry get(String realmId, String phoneNumber) {
+        return cache.get(key(realmId, phoneNumber));
+    }
+
+    public void put(String realmId, String phoneNumber, Entry entry) {
+        cache.put(key(realmId, phoneNumber), entry);
+    }
+
+    public void invalidateRealm(String realmId) {
+        String prefix = realmId + "::";
+        cache.removeIf((key, entry) -> key.startsWith(prefix));
+    }
+
+    void invalidateLocal(PhoneUserCacheInvalidationEvent event) {
+        String prefix = event.getRealmId() + "::";
+        cache.removeIf((key, entry) -> key.startsWith(prefix)
+                && (Objects.equals(event.getUserId(), entry.userId())
+                || event.getIndexedNumber() != null && event.getIndexedNumber().equals(entry.indexedNumber())));
+    }
+
+    public void onClusterEvent(ClusterEvent event) {
+        if (event instanceof PhoneUserCacheInvalidationEvent invalidation) {
+            invalidateLocal(invalidation);
+        }
+    }
+
+    /**
+     * Invalidates on this node right away and on the others through the cluster. Should the broadcast fail,
+     * the other nodes catch up when their entries expire.
+     */
+    public static void invalidate(KeycloakSession session, Collection<PhoneUserCacheInvalidationEvent> events) {
+        PhoneUserCache cache = of(session);
+        if (cache == null || events.isEmpty()) {
+            return;
+        }
+        events.forEach(cache::invalidateLocal);
+        try {
+            session.getProvider(ClusterProvider.class).notify(INVALIDATION_EVENTS, events, true);
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Failed to broadcast phone user cache invalidation: %s", e.getMessage()));
+        }
+    }
+}
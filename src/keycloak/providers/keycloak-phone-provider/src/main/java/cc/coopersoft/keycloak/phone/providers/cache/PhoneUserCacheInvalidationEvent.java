@@ -0,0 +1,43 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import org.infinispan.protostream.annotations.ProtoFactory;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.infinispan.protostream.annotations.ProtoTypeId;
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Tells every node to drop the cached lookups that resolved to the user, or that found no user for the
+ * number the user now has.
+ */
+@ProtoTypeId(PhoneUserCacheInvalidationEvent.TYPE_ID)
+public class PhoneUserCacheInvalidationEvent implements ClusterEvent {
+
+    // outside the ranges reserved by Infinispan and Keycloak
+    static final int TYPE_ID = 1_310_001;
+
+    private final String realmId;
+    private final String userId;
+    private final String indexedNumber;
+
+    @ProtoFactory
+    public PhoneUserCacheInvalidationEvent(String realmId, String userId, String indexedNumber) {
+        this.realmId = realmId;
+        this.userId = userId;
+        this.indexedNumber = indexedNumber;
+    }
+
+    @ProtoField(1)
+    public String getRealmId() {
+        return realmId;
+    }
+
+    @ProtoField(2)
+    public String getUserId() {
+        return userId;
+    }
+
+    @ProtoField(3)
+    public String getIndexedNumber() {
+        return indexedNumber;
+    }
+}
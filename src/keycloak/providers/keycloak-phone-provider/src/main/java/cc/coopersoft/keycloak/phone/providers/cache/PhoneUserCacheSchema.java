@@ -0,0 +1,16 @@
+package cc.coopersoft.keycloak.phone.providers.cache;
+
+import org.infinispan.protostream.GeneratedSchema;
+import org.infinispan.protostream.annotations.ProtoSchema;
+import org.infinispan.protostream.annotations.ProtoSyntax;
+
+/**
+ * Marshalling of the cluster events; the generated implementation is registered as a service.
+ */
+@ProtoSchema(
+        syntax = ProtoSyntax.PROTO3,
+        schemaPackageName = "cc.coopersoft.keycloak.phone",
+        schemaFileName = "phone-user-cache.proto",
+        includeClasses = PhoneUserCacheInvalidationEvent.class)
+public interface PhoneUserCacheSchema extends GeneratedSchema {
+}
@@ -0,0 +1,24 @@
+package cc.coopersoft.keycloak.phone.providers.constants;
+
+public enum DispatchMode {
+    /**
+     * Message is sent on the request thread before the response is returned.
+     */
+    SYNC,
+    /**
+     * Code is persisted and the message is handed to the dispatcher worker pool after commit.
+     */
+    ASYNC,
+    /**
+     * Message is written to the outbox table in the request transaction and sent by the background
+     * dispatcher of any node, with retries.
+     */
+    OUTBOX;
+
+    public static DispatchMode of(String value) {
+        if (value == null || value.isBlank()) {
+            return SYNC;
+        }
+        return DispatchMode.valueOf(value.trim().toUpperCase());
+    }
+}
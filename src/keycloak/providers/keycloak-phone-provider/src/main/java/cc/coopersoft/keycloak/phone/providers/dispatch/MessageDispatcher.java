@@ -0,0 +1,360 @@
+package cc.coopersoft.keycloak.phone.providers.dispatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import cc.coopersoft.common.CircuitBreaker;
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageDispatchRejectedException;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageServiceFaultException;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReceipt;
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
+
+/**
+ * Bounded worker pool that sends OTP messages outside the REST request thread.
+ * <p>
+ * A slot is reserved while the request is still running, so a saturated pool is reported to the
+ * client (503 + Retry-After) instead of silently dropping the message. The job itself is only
+ * submitted once the request transaction commits. A worker starts the send in its own Keycloak session and
+ * is free again as soon as the sender returned a stage; the outcome is recorded in a new transaction once
+ * the stage completed. The slot is held until then, so the pool also bounds the sends in flight.
+ */
+public class MessageDispatcher {
+
+    private static final Logger logger = Logger.getLogger(MessageDispatcher.class);
+
+    private static final Completion CANCEL_ON_FAILURE = (session, job, e) ->
+            // let the user request a new code right away instead of waiting for the unsent one to expire
+            session.getProvider(PhoneVerificationCodeProvider.class)
+                    .cancelProcess(job.phoneNumber(), job.type(), job.tokenCodeId());
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore permits;
+    private final int slots;
+    private final long retryAfter;
+    private final long shutdownTimeout;
+    private final long sendTimeout;
+    private final int queueCapacity;
+    private final SenderCircuitBreakers breakers;
+
+    private KeycloakSessionFactory sessionFactory;
+
+    /**
+     * @param breakers null to send without circuit breakers
+     */
+    public MessageDispatcher(int threads, int queueCapacity, long retryAfter, long shutdownTimeout, long sendTimeout,
+                             SenderCircuitBreakers breakers) {
+        this.retryAfter = retryAfter;
+        this.shutdownTimeout = shutdownTimeout;
+        this.sendTimeout = sendTimeout;
+        this.queueCapacity = queueCapacity;
+        this.breakers = breakers;
+        // one permit per worker plus one per queue slot, the executor queue can never overflow
+        this.slots = threads + queueCapacity;
+        this.permits = new Semaphore(slots);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new DispatchThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+        logger.info(String.format("Message dispatcher started with %d workers and queue capacity %d", threads, queueCapacity));
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Reserves a dispatch slot for the current request. The slot is held until the session transaction
+     * completes: it is released on rollback, and on commit unless a job was handed to the reservation.
+     *
+     * @throws MessageDispatchRejectedException if every worker is busy and the queue is full
+     */
+    public Reservation reserve(KeycloakSession session) {
+        if (!permits.tryAcquire()) {
+            logger.warn(String.format("Message dispatch queue saturated (%d queued), rejecting request", executor.getQueue().size()));
+            throw new MessageDispatchRejectedException("Too many pending messages, please try again shortly.", retryAfter);
+        }
+        Reservation reservation = new Reservation();
+        try {
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    if (reservation.job == null) {
+                        permits.release();
+                    } else {
+                        submit(reservation.job);
+                    }
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return reservation;
+    }
+
+    private void submit(DispatchJob job) {
+        submit(job, CANCEL_ON_FAILURE);
+    }
+
+    private void submit(DispatchJob job, Completion completion) {
+        try {
+            // the permit is held until the send completed, the worker only until it started
+            executor.execute(() -> start(job, completion));
+        } catch (RuntimeException e) {
+            permits.release();
+            logger.error(String.format("Failed to submit %s message to %s", job.type().label, job.phoneNumber()), e);
+        }
+    }
+
+    /**
+     * Sends the job on a worker if a slot is free, without reserving one beforehand. The completion runs in
+     * its own transaction once the send completed.
+     *
+     * @return false if every worker is busy and the queue is full
+     */
+    public boolean trySubmit(DispatchJob job, Completion completion) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        submit(job, completion);
+        return true;
+    }
+
+    /**
+     * @return how many jobs submitted right now would start without waiting in the queue
+     */
+    public int idleWorkers() {
+        return Math.max(0, permits.availablePermits() - queueCapacity);
+    }
+
+    /**
+     * @return seconds a send may take before it is given up
+     */
+    public long getSendTimeout() {
+        return sendTimeout;
+    }
+
+    /**
+     * Starts the send in one transaction and runs the completion in another once the sender answered, no
+     * transaction stays open while the provider works.
+     */
+    private void start(DispatchJob job, Completion completion) {
+        Sending sending;
+        try {
+            sending = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> begin(session, job, completion));
+        } catch (RuntimeException e) {
+            permits.release();
+            logger.error(String.format("Failed to send %s code to %s", job.type().label, job.phoneNumber()), e);
+            return;
+        }
+        if (sending == null) {
+            permits.release();
+            return;
+        }
+        CompletableFuture<DeliveryReceipt> receipt = sending.receipt();
+        receipt.copy().orTimeout(sendTimeout, TimeUnit.SECONDS).whenComplete((result, error) -> {
+            try {
+                if (error != null && unwrap(error) instanceof TimeoutException) {
+                    // the sender must not start a fallback for a code that is about to be cancelled
+                    receipt.cancel(false);
+                }
+                complete(job, completion, sending.call(), result, error == null ? null : sendException(unwrap(error)));
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * @return the send in progress, null when there is nothing to wait for
+     */
+    private Sending begin(KeycloakSession session, DispatchJob job, Completion completion) {
+        RealmModel realm = session.realms().getRealm(job.realmId());
+        if (realm == null) {
+            logger.warn(String.format("Realm %s no longer exists, dropping %s message", job.realmId(), job.type().label));
+            completion.dropped(session, job);
+            return null;
+        }
+        session.getContext().setRealm(realm);
+        if (!completion.admit(session, job)) {
+            return null;
+        }
+        CircuitBreaker.Call call = null;
+        try {
+            if (breakers != null) {
+                call = breakers.acquire(job.service());
+            }
+            // the sender localizes the message here, while the session is open
+            return new Sending(session.getProvider(MessageSenderService.class, job.service())
+                    .sendSmsMessageAsync(job.type(), job.phoneNumber(), job.code(), job.expires(), job.kind(), job.locale())
+                    .toCompletableFuture(), call);
+        } catch (MessageSendException e) {
+            logger.error(String.format("Failed to send %s code to %s: %s", job.type().label, job.phoneNumber(), e.getMessage()), e);
+            completion.failed(session, job, e);
+            return null;
+        } catch (RuntimeException e) {
+            if (call != null) {
+                SenderCircuitBreakers.failed(call, e);
+            }
+            throw e;
+        }
+    }
+
+    private void complete(DispatchJob job, Completion completion, CircuitBreaker.Call call, DeliveryReceipt receipt,
+                          MessageSendException failure) {
+        if (call != null) {
+            if (failure == null) {
+                call.success();
+            } else {
+                SenderCircuitBreakers.failed(call, failure);
+            }
+        }
+        if (failure == null) {
+            logger.info(String.format("Successfully sent %s code to %s using service: %s%s in %dms (async)",
+                    job.type().label, job.phoneNumber(), job.service(),
+                    receipt.getChannel() == null ? "" : " over " + receipt.getChannel(), receipt.getLatency()));
+        } else {
+            logger.error(String.format("Failed to send %s code to %s: %s", job.type().label, job.phoneNumber(), failure.getMessage()), failure);
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(job.realmId());
+                if (realm == null) {
+                    completion.dropped(session, job);
+                    return;
+                }
+                session.getContext().setRealm(realm);
+                if (failure == null) {
+                    completion.sent(session, job);
+                } else {
+                    completion.failed(session, job, failure);
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to complete %s message to %s", job.type().label, job.phoneNumber()), e);
+        }
+    }
+
+    private MessageSendException sendException(Throwable error) {
+        if (error instanceof MessageSendException sendException) {
+            return sendException;
+        }
+        if (error instanceof TimeoutException) {
+            return new MessageServiceFaultException(String.format("Message was not accepted within %d seconds", sendTimeout), error);
+        }
+        return new MessageSendException(error.getMessage(), error);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Stops accepting jobs and waits for queued messages to be sent.
+     */
+    public void close() {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(shutdownTimeout);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS)) {
+                int dropped = executor.shutdownNow().size();
+                logger.warn(String.format("Message dispatcher did not drain within %d seconds, %d messages dropped", shutdownTimeout, dropped));
+            } else if (!permits.tryAcquire(slots, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                // started sends complete on the sender's threads
+                logger.warn(String.format("Message dispatcher closed with %d sends still in flight", slots - permits.availablePermits()));
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A dispatch slot held by a request, see {@link #reserve(KeycloakSession)}.
+     */
+    public static final class Reservation {
+
+        private DispatchJob job;
+
+        private Reservation() {
+        }
+
+        /**
+         * Submits the job once the session transaction commits.
+         */
+        public void dispatchAfterCommit(DispatchJob job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * What happens to a job once its send was attempted.
+     */
+    public interface Completion {
+
+        /**
+         * Called on the worker before sending.
+         *
+         * @return false to skip the job, e.g. because it waited too long to be sent under its claim
+         */
+        default boolean admit(KeycloakSession session, DispatchJob job) {
+            return true;
+        }
+
+        default void sent(KeycloakSession session, DispatchJob job) {
+        }
+
+        void failed(KeycloakSession session, DispatchJob job, MessageSendException e);
+
+        default void dropped(KeycloakSession session, DispatchJob job) {
+        }
+    }
+
+    private record Sending(CompletableFuture<DeliveryReceipt> receipt, CircuitBreaker.Call call) {
+    }
+
+    public record DispatchJob(String realmId, String service, String tokenCodeId, TokenCodeType type,
+                              String phoneNumber, String code, int expires, String kind, String locale) {
+    }
+
+    private static class DispatchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "phone-message-dispatch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package cc.coopersoft.keycloak.phone.providers.dispatch;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.jpa.OutboxMessage;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.TemporalType;
+
+/**
+ * Transactional outbox for OTP messages. A message is written to PHONE_MESSAGE_OUTBOX in the transaction
+ * that persists its token code, so it is sent if and only if the code was stored.
+ * <p>
+ * Every node polls the table and claims due rows with {@code SELECT ... FOR UPDATE SKIP LOCKED}, pushing
+ * their next attempt out by a lease before the claim commits, so nodes never pick the same rows and a
+ * message whose node died is picked up again once its lease ran out. Claimed messages are sent on the
+ * {@link MessageDispatcher} workers, only as many as there are idle workers. A sent message is deleted, a
+ * failed one is retried with exponential backoff until it runs out of attempts or its code expires, then
+ * its process is cancelled.
+ * <p>
+ * The attempt count doubles as the claim: every claim bumps it, and a worker only sends, deletes or
+ * reschedules a row whose count still matches its claim. The lease must outlast a send, and a claim that
+ * could no longer finish within its lease is not sent at all.
+ */
+public class MessageOutbox {
+
+    private static final Logger logger = Logger.getLogger(MessageOutbox.class);
+
+    private static final int SKIP_LOCKED = -2;
+
+    private final MessageDispatcher dispatcher;
+    private final long pollInterval;
+    private final int batchSize;
+    private final long lease;
+    private final long sendTimeout;
+    private final int maxAttempts;
+    private final long retryDelay;
+
+    private final ScheduledExecutorService poller;
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+    private KeycloakSessionFactory sessionFactory;
+
+    /**
+     * @param pollInterval, lease, retryDelay in milliseconds
+     */
+    public MessageOutbox(MessageDispatcher dispatcher, long pollInterval, int batchSize, long lease,
+                         int maxAttempts, long retryDelay) {
+        this.sendTimeout = TimeUnit.SECONDS.toMillis(dispatcher.getSendTimeout());
+        if (lease <= sendTimeout) {
+            throw new IllegalArgumentException(String.format(
+                    "outboxLease (%d s) must be longer than dispatchSendTimeout (%d s), or a message still being sent is claimed again",
+                    TimeUnit.MILLISECONDS.toSeconds(lease), dispatcher.getSendTimeout()));
+        }
+        this.dispatcher = dispatcher;
+        this.pollInterval = pollInterval;
+        this.batchSize = batchSize;
+        this.lease = lease;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "phone-message-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts polling, the schema must be up to date.
+     */
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        poller.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        logger.info(String.format("Message outbox polled every %d ms, %d messages per batch", pollInterval, batchSize));
+    }
+
+    /**
+     * Writes the job to the outbox in the session transaction, and polls right after the commit so the
+     * message does not wait for the next interval.
+     */
+    public void enqueue(KeycloakSession session, MessageDispatcher.DispatchJob job) {
+        Date now = new Date();
+        OutboxMessage message = new OutboxMessage();
+        message.setId(KeycloakModelUtils.generateId());
+        message.setRealmId(job.realmId());
+        message.setService(job.service());
+        message.setTokenCodeId(job.tokenCodeId());
+        message.setType(job.type().name());
+        message.setPhoneNumber(job.phoneNumber());
+        message.setCode(job.code());
+        message.setExpires(job.expires());
+        message.setKind(job.kind());
+        message.setLocale(job.locale());
+        message.setCreatedAt(now);
+        message.setNextAttemptAt(now);
+        message.setAttempts(0);
+        session.getProvider(JpaConnectionProvider.class).getEntityManager().persist(message);
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                wakeUp();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private void wakeUp() {
+        if (sessionFactory == null || !wakeUpPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            poller.execute(this::poll);
+        } catch (RuntimeException e) {
+            wakeUpPending.set(false);
+            logger.debug("Message outbox poller is closed", e);
+        }
+    }
+
+    private void poll() {
+        // commits arriving while this run is in progress wake up another one
+        wakeUpPending.set(false);
+        try {
+            while (true) {
+                // queued claims would wait on their lease, only claim what starts right away
+                int slots = Math.min(batchSize, dispatcher.idleWorkers());
+                if (slots <= 0) {
+                    return;
+                }
+                List<Claim> claims = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> claim(session, slots));
+                claims.forEach(claim -> {
+                    if (!dispatcher.trySubmit(claim.job(), claim)) {
+                        logger.debug(String.format("Dispatcher is busy, giving %s message %s back",
+                                claim.job().type().label, claim.id()));
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, claim::unclaim);
+                    }
+                });
+                if (claims.size() < slots) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to poll the message outbox", e);
+        }
+    }
+
+    private List<Claim> claim(KeycloakSession session, int limit) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        Date now = new Date();
+        List<OutboxMessage> due = em.createNamedQuery("outboxDue", OutboxMessage.class)
+                .setParameter("now", now, TemporalType.TIMESTAMP)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                // -2 is SKIP LOCKED for Hibernate, rows claimed by another node are left out
+                .setHint("jakarta.persistence.lock.timeout", SKIP_LOCKED)
+                .setMaxResults(limit)
+                .getResultList();
+
+        return due.stream()
+                .filter(message -> {
+                    if (message.getCreatedAt().getTime() + message.getExpires() * 1000L <= now.getTime()) {
+                        logger.warn(String.format("Dropping %s message to %s, its code expired before it could be sent",
+                                message.getType(), message.getPhoneNumber()));
+                        em.remove(message);
+                        return false;
+                    }
+                    return true;
+                })
+                .map(message -> {
+                    message.setAttempts(message.getAttempts() + 1);
+                    message.setNextAttemptAt(new Date(now.getTime() + lease));
+                    return new Claim(message.getId(), message.getAttempts(), now.getTime() + lease, new MessageDispatcher.DispatchJob(
+                            message.getRealmId(), message.getService(), message.getTokenCodeId(),
+                            TokenCodeType.valueOf(message.getType()), message.getPhoneNumber(), message.getCode(),
+                            message.getExpires(), message.getKind(), message.getLocale()));
+                })
+                .toList();
+    }
+
+    private final class Claim implements MessageDispatcher.Completion {
+
+        private final String id;
+        private final int attempts;
+        private final long leaseEnd;
+        private final MessageDispatcher.DispatchJob job;
+
+        private Claim(String id, int attempts, long leaseEnd, MessageDispatcher.DispatchJob job) {
+            this.id = id;
+            this.attempts = attempts;
+            this.leaseEnd = leaseEnd;
+            this.job = job;
+        }
+
+        String id() {
+            return id;
+        }
+
+        MessageDispatcher.DispatchJob job() {
+            return job;
+        }
+
+        /**
+         * @return the row locked until the transaction ends, null if it is gone or claimed again since
+         */
+        private OutboxMessage find(KeycloakSession session) {
+            OutboxMessage message = session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .find(OutboxMessage.class, id, LockModeType.PESSIMISTIC_WRITE);
+            if (message == null || message.getAttempts() != attempts) {
+                logger.debug(String.format("%s message %s was claimed again, leaving it to the new claim", job.type().label, id));
+                return null;
+            }
+            return message;
+        }
+
+        private void delete(KeycloakSession session) {
+            OutboxMessage message = find(session);
+            if (message != null) {
+                session.getProvider(JpaConnectionProvider.class).getEntityManager().remove(message);
+            }
+        }
+
+        /**
+         * Gives a claim that was never submitted back, without using up an attempt.
+         */
+        void unclaim(KeycloakSession session) {
+            OutboxMessage message = find(session);
+            if (message != null) {
+                message.setAttempts(attempts - 1);
+                message.setNextAttemptAt(new Date());
+            }
+        }
+
+        @Override
+        public boolean admit(KeycloakSession session, MessageDispatcher.DispatchJob job) {
+            if (System.currentTimeMillis() + sendTimeout >= leaseEnd) {
+                logger.warn(String.format("%s message %s waited too long for a worker, it is sent once its lease ran out",
+                        job.type().label, id));
+                return false;
+            }
+            return find(session) != null;
+        }
+
+        @Override
+        public void sent(KeycloakSession session, MessageDispatcher.DispatchJob job) {
+            delete(session);
+        }
+
+        @Override
+        public void dropped(KeycloakSession session, MessageDispatcher.DispatchJob job) {
+            delete(session);
+        }
+
+        @Override
+        public void failed(KeycloakSession session, MessageDispatcher.DispatchJob job, MessageSendException e) {
+            OutboxMessage message = find(session);
+            if (message == null) {
+                return;
+            }
+            long nextAttemptAt = System.currentTimeMillis() + (retryDelay << Math.min(attempts - 1, 16));
+            if (attempts >= maxAttempts || nextAttemptAt >= message.getCreatedAt().getTime() + job.expires() * 1000L) {
+                logger.warn(String.format("Giving up on %s message to %s after %d attempts", job.type().label,
+                        job.phoneNumber(), attempts));
+                session.getProvider(JpaConnectionProvider.class).getEntityManager().remove(message);
+                // let the user request a new code right away instead of waiting for the unsent one to expire
+                session.getProvider(PhoneVerificationCodeProvider.class)
+                        .cancelProcess(job.phoneNumber(), job.type(), job.tokenCodeId());
+                return;
+            }
+            message.setNextAttemptAt(new Date(nextAttemptAt));
+        }
+    }
+
+    public void close() {
+        poller.shutdownNow();
+    }
+}
@@ -0,0 +1,53 @@
+package cc.coopersoft.keycloak.phone.providers.dispatch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cc.coopersoft.common.CircuitBreaker;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageServiceFaultException;
+
+/**
+ * One circuit breaker per {@code MessageSenderService} provider id, shared by the sessions of this node.
+ * While the breaker of a service is open its sends fail right away instead of waiting on a provider that
+ * is down or too slow.
+ * <p>
+ * Only the failures a sender reports as {@link MessageServiceFaultException} count. A send the service
+ * refused for the recipient or the message is an answer of a healthy service and counts as a success.
+ */
+public class SenderCircuitBreakers {
+
+    private final CircuitBreaker.Settings settings;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public SenderCircuitBreakers(CircuitBreaker.Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @return the permit to record the outcome of the send on
+     * @throws MessageSendException if the breaker of the service is open
+     */
+    public CircuitBreaker.Call acquire(String service) throws MessageSendException {
+        CircuitBreaker.Call call = breakers.computeIfAbsent(service,
+                id -> new CircuitBreaker("sender-" + id, settings).registerMetrics()).tryAcquire();
+        if (call == null) {
+            throw new MessageSendException(String.format("Message service %s is unavailable, please try again shortly.", service), null);
+        }
+        return call;
+    }
+
+    /**
+     * Records the outcome of a send that threw.
+     */
+    public static void failed(CircuitBreaker.Call call, Exception e) {
+        if (e instanceof MessageServiceFaultException) {
+            call.failure();
+        } else if (e instanceof MessageSendException) {
+            call.success();
+        } else {
+            // unexpected errors say nothing about the service
+            call.ignore();
+        }
+    }
+}
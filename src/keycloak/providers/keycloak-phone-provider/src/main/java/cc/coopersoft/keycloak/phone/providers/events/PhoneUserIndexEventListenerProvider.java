@@ -0,0 +1,74 @@
+package cc.coopersoft.keycloak.phone.providers.events;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneUserIndexStore;
+
+/**
+ * Keeps PHONE_USER_INDEX in line with the phoneNumber attribute of users changed by the login flows and
+ * the admin API. Removed users and realms are handled by the factory through provider events.
+ */
+public class PhoneUserIndexEventListenerProvider implements EventListenerProvider {
+
+    private static final Set<EventType> USER_CHANGES = EnumSet.of(
+            EventType.REGISTER,
+            EventType.UPDATE_PROFILE,
+            EventType.VERIFY_PROFILE,
+            EventType.CUSTOM_REQUIRED_ACTION,
+            EventType.IDENTITY_PROVIDER_FIRST_LOGIN);
+
+    private static final Set<OperationType> ADMIN_CHANGES = EnumSet.of(
+            OperationType.CREATE,
+            OperationType.UPDATE,
+            OperationType.ACTION);
+
+    private final KeycloakSession session;
+
+    public PhoneUserIndexEventListenerProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if (event.getError() == null && event.getUserId() != null && USER_CHANGES.contains(event.getType())) {
+            PhoneUserIndexStore.syncAfterCommit(session, event.getRealmId(), List.of(event.getUserId()));
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getError() != null || !ResourceType.USER.equals(event.getResourceType())
+                || !ADMIN_CHANGES.contains(event.getOperationType())) {
+            return;
+        }
+        String userId = userId(event.getResourcePath());
+        if (userId != null) {
+            PhoneUserIndexStore.syncAfterCommit(session, event.getRealmId(), List.of(userId));
+        }
+    }
+
+    /**
+     * @return the id in "users/{id}[/...]"
+     */
+    private static String userId(String resourcePath) {
+        if (resourcePath == null || !resourcePath.startsWith("users/")) {
+            return null;
+        }
+        String[] segments = resourcePath.split("/");
+        return segments.length > 1 && !segments[1].isBlank() ? segments[1] : null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
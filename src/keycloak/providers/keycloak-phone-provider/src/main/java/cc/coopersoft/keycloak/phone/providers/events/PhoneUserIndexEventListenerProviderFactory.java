@@ -0,0 +1,101 @@
+package cc.coopersoft.keycloak.phone.providers.events;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCacheInvalidationEvent;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneUserIndexBackfill;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneUserIndexStore;
+
+/**
+ * Global, so the index and the phone user cache are maintained without enabling the listener in every realm.
+ */
+public class PhoneUserIndexEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(PhoneUserIndexEventListenerProviderFactory.class);
+
+    public static final String PROVIDER_ID = "phone-user-index";
+
+    private int backfillBatchSize;
+    private int backfillTimeout;
+    private PhoneUserCache userCache;
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new PhoneUserIndexEventListenerProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        backfillBatchSize = config.getInt("backfillBatchSize", 500);
+        backfillTimeout = config.getInt("backfillTimeout", 3600);
+        if (config.getBoolean("userCacheEnabled", true)) {
+            userCache = new PhoneUserCache(config.getInt("userCacheSize", 10000),
+                    TimeUnit.SECONDS.toMillis(config.getLong("userCacheTtl", 60L)));
+        }
+    }
+
+    /**
+     * @return the phone number to user cache of this node, or null when disabled
+     */
+    public PhoneUserCache getUserCache() {
+        return userCache;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof UserModel.UserRemovedEvent removed) {
+                new PhoneUserIndexStore(removed.getKeycloakSession()).remove(removed.getUser().getId());
+                PhoneUserCache.invalidate(removed.getKeycloakSession(), List.of(new PhoneUserCacheInvalidationEvent(
+                        removed.getRealm().getId(), removed.getUser().getId(), null)));
+            } else if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                new PhoneUserIndexStore(removed.getKeycloakSession()).removeRealm(removed.getRealm().getId());
+                if (userCache != null) {
+                    userCache.invalidateRealm(removed.getRealm().getId());
+                }
+            } else if (event instanceof PostMigrationEvent) {
+                if (userCache != null) {
+                    KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(ClusterProvider.class)
+                            .registerListener(PhoneUserCache.INVALIDATION_EVENTS, userCache::onClusterEvent));
+                }
+                Thread backfill = new Thread(() -> {
+                    try {
+                        new PhoneUserIndexBackfill(factory, backfillBatchSize, backfillTimeout).run();
+                    } catch (RuntimeException e) {
+                        logger.error("Phone user index backfill failed, lookups keep scanning user attributes", e);
+                    }
+                }, "phone-user-index-backfill");
+                backfill.setDaemon(true);
+                backfill.start();
+            }
+        });
+    }
+
+    @Override
+    public boolean isGlobal() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,20 @@
+package cc.coopersoft.keycloak.phone.providers.exception;
+
+import jakarta.ws.rs.ServiceUnavailableException;
+
+/**
+ * Thrown when the dispatch queue is saturated, carries the Retry-After hint for the client.
+ */
+public class MessageDispatchRejectedException extends ServiceUnavailableException {
+
+    private final long retryAfter;
+
+    public MessageDispatchRejectedException(String message, long retryAfter) {
+        super(message, retryAfter);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
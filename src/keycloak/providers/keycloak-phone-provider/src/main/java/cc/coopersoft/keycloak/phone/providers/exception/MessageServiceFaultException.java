@@ -0,0 +1,12 @@
+package cc.coopersoft.keycloak.phone.providers.exception;
+
+/**
+ * A send that failed because of the message service itself (outage, throttling, timeout) rather than the
+ * recipient or the message. Only these count as failures towards the circuit breaker of the service.
+ */
+public class MessageServiceFaultException extends MessageSendException {
+
+    public MessageServiceFaultException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
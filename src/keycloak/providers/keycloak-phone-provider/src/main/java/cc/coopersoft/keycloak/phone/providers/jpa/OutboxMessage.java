@@ -0,0 +1,60 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.util.Date;
+
+@Entity
+@Data
+@Table(name = "PHONE_MESSAGE_OUTBOX")
+@NamedQueries({
+        @NamedQuery(
+                name = "outboxDue",
+                query = "FROM OutboxMessage o WHERE o.nextAttemptAt <= :now ORDER BY o.nextAttemptAt"
+        )
+})
+public class OutboxMessage {
+
+    @Id
+    @Column(name = "ID")
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    @Column(name = "SERVICE", nullable = false)
+    private String service;
+
+    @Column(name = "TOKEN_CODE_ID", nullable = false)
+    private String tokenCodeId;
+
+    @Column(name = "TYPE", nullable = false)
+    private String type;
+
+    @Column(name = "PHONE_NUMBER", nullable = false)
+    private String phoneNumber;
+
+    @Column(name = "CODE", nullable = false)
+    private String code;
+
+    @Column(name = "EXPIRES", nullable = false)
+    private Integer expires;
+
+    @Column(name = "KIND")
+    private String kind;
+
+    @Column(name = "LOCALE")
+    private String locale;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED_AT", nullable = false)
+    private Date createdAt;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private Date nextAttemptAt;
+
+    @Column(name = "ATTEMPTS", nullable = false)
+    private Integer attempts;
+}
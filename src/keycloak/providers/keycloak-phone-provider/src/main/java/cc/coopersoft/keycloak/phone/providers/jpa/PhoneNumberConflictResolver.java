@@ -0,0 +1,173 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserRequiredActionEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.validation.Validation;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
+
+import cc.coopersoft.keycloak.phone.authentication.requiredactions.UpdatePhoneNumberRequiredAction;
+import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialDecoder;
+import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialModel;
+import jakarta.persistence.EntityManager;
+
+/**
+ * Un-verifies, with a few set-based statements, the other users of a realm that hold a phone number which
+ * was just verified: phoneNumberVerified is set to false, the update phone number action is required and
+ * their phone OTP credentials for the number are removed. The statements bypass the user adapters, so this
+ * only applies to realms without user storage providers, and the cached users are evicted.
+ */
+public class PhoneNumberConflictResolver {
+
+    private static final Logger logger = Logger.getLogger(PhoneNumberConflictResolver.class);
+
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String FIND_CONFLICTS = "SELECT u.id, u.username, u.email FROM UserEntity u "
+            + "WHERE u.realmId = :realmId AND u.id <> :userId AND EXISTS (SELECT a.id FROM UserAttributeEntity a "
+            + "WHERE a.user = u AND a.name = 'phoneNumber' AND a.value = :phoneNumber)";
+
+    private record Conflict(String id, String username, String email) {
+    }
+
+    private final KeycloakSession session;
+
+    public PhoneNumberConflictResolver(KeycloakSession session) {
+        this.session = session;
+    }
+
+    private EntityManager getEntityManager() {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    public static boolean supports(RealmModel realm) {
+        return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()).findAny().isEmpty();
+    }
+
+    /**
+     * @param credentialPhoneNumber OTP credentials bound to this number, or to none, are removed
+     * @return the ids of the un-verified users
+     */
+    public List<String> unverifyOthers(RealmModel realm, String phoneNumber, String userId, String credentialPhoneNumber) {
+        List<Conflict> conflicts = getEntityManager()
+                .createQuery(FIND_CONFLICTS, Object[].class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", userId)
+                .setParameter("phoneNumber", phoneNumber)
+                .getResultStream()
+                .map(row -> new Conflict((String) row[0], (String) row[1], (String) row[2]))
+                .toList();
+        if (conflicts.isEmpty()) {
+            return List.of();
+        }
+
+        List<String> ids = conflicts.stream().map(Conflict::id).toList();
+        logger.info(String.format("%d other users also have phone number %s. Un-verifying.", ids.size(), phoneNumber));
+        chunked(ids, chunk -> {
+            unverify(chunk);
+            requireUpdatePhoneNumber(chunk);
+            removeOtpCredentials(chunk, credentialPhoneNumber);
+        });
+
+        UserCache userCache = session.getProvider(UserCache.class);
+        if (userCache != null) {
+            conflicts.forEach(conflict -> {
+                InMemoryUserAdapter user = new InMemoryUserAdapter(session, realm, conflict.id());
+                user.setUsername(conflict.username());
+                user.setEmail(conflict.email());
+                userCache.evict(realm, user);
+            });
+        }
+        return ids;
+    }
+
+    private void unverify(List<String> ids) {
+        EntityManager em = getEntityManager();
+        em.createQuery("UPDATE UserAttributeEntity a SET a.value = 'false' "
+                        + "WHERE a.name = 'phoneNumberVerified' AND a.user.id IN :ids")
+                .setParameter("ids", ids)
+                .executeUpdate();
+
+        Set<String> missing = new HashSet<>(ids);
+        missing.removeAll(em.createQuery("SELECT a.user.id FROM UserAttributeEntity a "
+                        + "WHERE a.name = 'phoneNumberVerified' AND a.user.id IN :ids", String.class)
+                .setParameter("ids", ids)
+                .getResultList());
+        missing.forEach(id -> {
+            UserAttributeEntity attribute = new UserAttributeEntity();
+            attribute.setId(KeycloakModelUtils.generateId());
+            attribute.setName("phoneNumberVerified");
+            attribute.setValue("false");
+            attribute.setUser(em.getReference(UserEntity.class, id));
+            em.persist(attribute);
+        });
+    }
+
+    private void requireUpdatePhoneNumber(List<String> ids) {
+        EntityManager em = getEntityManager();
+        Set<String> missing = new HashSet<>(ids);
+        missing.removeAll(em.createQuery("SELECT r.user.id FROM UserRequiredActionEntity r "
+                        + "WHERE r.action = :action AND r.user.id IN :ids", String.class)
+                .setParameter("action", UpdatePhoneNumberRequiredAction.PROVIDER_ID)
+                .setParameter("ids", ids)
+                .getResultList());
+        missing.forEach(id -> {
+            UserRequiredActionEntity action = new UserRequiredActionEntity();
+            action.setAction(UpdatePhoneNumberRequiredAction.PROVIDER_ID);
+            action.setUser(em.getReference(UserEntity.class, id));
+            em.persist(action);
+        });
+    }
+
+    private void removeOtpCredentials(List<String> ids, String credentialPhoneNumber) {
+        EntityManager em = getEntityManager();
+        PhoneOtpCredentialDecoder decoder = PhoneOtpCredentialDecoder.of(session);
+        List<String> removed = new ArrayList<>();
+        em.createQuery("SELECT c.id, c.credentialData FROM CredentialEntity c "
+                        + "WHERE c.type = :type AND c.user.id IN :ids", Object[].class)
+                .setParameter("type", PhoneOtpCredentialModel.TYPE)
+                .setParameter("ids", ids)
+                .getResultStream()
+                .forEach(row -> {
+                    CredentialModel credential = new CredentialModel();
+                    credential.setId((String) row[0]);
+                    credential.setCredentialData((String) row[1]);
+                    try {
+                        PhoneOtpCredentialModel.SmsOtpCredentialData credentialData = decoder.credentialData(credential);
+                        if (credentialData == null || Validation.isBlank(credentialData.getPhoneNumber())
+                                || credentialData.getPhoneNumber().equals(credentialPhoneNumber)) {
+                            removed.add(credential.getId());
+                        }
+                    } catch (IOException e) {
+                        logger.warn("Unknown format Otp Credential", e);
+                        removed.add(credential.getId());
+                    }
+                });
+        if (!removed.isEmpty()) {
+            em.createQuery("DELETE FROM CredentialEntity c WHERE c.id IN :ids")
+                    .setParameter("ids", removed)
+                    .executeUpdate();
+        }
+    }
+
+    private static void chunked(List<String> ids, Consumer<List<String>> work) {
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            work.accept(ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size())));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Finds the users whose phoneNumber attribute is any of a set of numbers in one query, ranked the way
+ * {@code Utils.findUserByPhone} picks a winner: verified numbers first, then numbers in international form.
+ */
+public class PhoneUserAttributeLookup {
+
+    private static final String QUERY = "SELECT a.user.id FROM UserAttributeEntity a "
+            + "LEFT JOIN UserAttributeEntity v ON v.user = a.user AND v.name = 'phoneNumberVerified' AND v.value = 'true' "
+            + "WHERE a.name = 'phoneNumber' AND a.value IN :numbers AND a.user.realmId = :realmId "
+            + "ORDER BY CASE WHEN v.id IS NULL THEN 0 ELSE 1 END DESC, "
+            + "CASE WHEN a.value LIKE '+%' THEN 1 ELSE 0 END DESC";
+
+    private final KeycloakSession session;
+
+    public PhoneUserAttributeLookup(KeycloakSession session) {
+        this.session = session;
+    }
+
+    /**
+     * @return the ids of the matching users, best candidate first
+     */
+    public List<String> findRankedUserIds(RealmModel realm, Collection<String> numbers) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createQuery(QUERY, String.class)
+                .setParameter("numbers", numbers)
+                .setParameter("realmId", realm.getId())
+                .getResultList();
+    }
+}
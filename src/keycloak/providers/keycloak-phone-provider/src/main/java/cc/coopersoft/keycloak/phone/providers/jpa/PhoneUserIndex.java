@@ -0,0 +1,37 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+@Entity
+@Data
+@Table(name = "PHONE_USER_INDEX")
+@NamedQueries({
+        @NamedQuery(
+                name = "phoneUserIndexByNumber",
+                query = "SELECT i.userId FROM PhoneUserIndex i WHERE i.realmId = :realmId " +
+                        "AND i.phoneNumber = :phoneNumber ORDER BY i.verified DESC"
+        ),
+        @NamedQuery(
+                name = "deletePhoneUserIndexByRealm",
+                query = "DELETE FROM PhoneUserIndex i WHERE i.realmId = :realmId"
+        )
+})
+public class PhoneUserIndex {
+
+    @Id
+    @Column(name = "USER_ID")
+    private String userId;
+
+    @Column(name = "REALM_ID", nullable = false)
+    private String realmId;
+
+    /**
+     * The phoneNumber attribute in E.164, or as stored when it cannot be parsed.
+     */
+    @Column(name = "PHONE_NUMBER", nullable = false)
+    private String phoneNumber;
+
+    @Column(name = "VERIFIED", nullable = false)
+    private Boolean verified;
+}
@@ -0,0 +1,98 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.persistence.EntityManager;
+
+/**
+ * Fills PHONE_USER_INDEX from the phoneNumber attributes of the realms that are not marked ready yet, in
+ * batches of users walked by id. Only one node of the cluster runs it; afterwards the realm is marked ready
+ * and the event listener keeps the index up to date.
+ */
+public class PhoneUserIndexBackfill {
+
+    private static final Logger logger = Logger.getLogger(PhoneUserIndexBackfill.class);
+
+    private static final String TASK_KEY = "phone-user-index-backfill";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final int batchSize;
+    private final int taskTimeout;
+
+    public PhoneUserIndexBackfill(KeycloakSessionFactory sessionFactory, int batchSize, int taskTimeout) {
+        this.sessionFactory = sessionFactory;
+        this.batchSize = batchSize;
+        this.taskTimeout = taskTimeout;
+    }
+
+    public void run() {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(ClusterProvider.class)
+                .executeIfNotExecuted(TASK_KEY, taskTimeout, () -> {
+                    List<String> realmIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                            realmSession -> realmSession.realms().getRealmsStream()
+                                    .filter(realm -> !new PhoneUserIndexStore(realmSession).isReady(realm))
+                                    .map(RealmModel::getId)
+                                    .toList());
+                    realmIds.forEach(this::backfillRealm);
+                    return null;
+                }));
+    }
+
+    private void backfillRealm(String realmId) {
+        String lastId = "";
+        int total = 0;
+        while (lastId != null) {
+            String fromId = lastId;
+            int[] count = new int[1];
+            lastId = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) {
+                    return null;
+                }
+                session.getContext().setRealm(realm);
+                EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+
+                List<Object[]> rows = em.createQuery("SELECT a.user.id, a.value FROM UserAttributeEntity a "
+                                + "WHERE a.name = 'phoneNumber' AND a.user.realmId = :realmId AND a.user.id > :lastId "
+                                + "ORDER BY a.user.id", Object[].class)
+                        .setParameter("realmId", realmId)
+                        .setParameter("lastId", fromId)
+                        .setMaxResults(batchSize)
+                        .getResultList();
+                if (rows.isEmpty()) {
+                    new PhoneUserIndexStore(session).markReady(realmId);
+                    return null;
+                }
+
+                List<String> userIds = rows.stream().map(row -> (String) row[0]).toList();
+                Set<String> verified = new HashSet<>(em.createQuery("SELECT a.user.id FROM UserAttributeEntity a "
+                                + "WHERE a.name = 'phoneNumberVerified' AND a.value = 'true' AND a.user.id IN :userIds", String.class)
+                        .setParameter("userIds", userIds)
+                        .getResultList());
+
+                PhoneUserIndexStore store = new PhoneUserIndexStore(session);
+                Set<String> seen = new HashSet<>();
+                for (Object[] row : rows) {
+                    String userId = (String) row[0];
+                    // first value of a multi-valued attribute only, as the listener does
+                    if (seen.add(userId)) {
+                        store.upsert(realmId, userId, (String) row[1], verified.contains(userId));
+                    }
+                }
+                count[0] = seen.size();
+                return userIds.get(userIds.size() - 1);
+            });
+            total += count[0];
+        }
+        logger.info(String.format("Phone user index of realm %s ready, %d users indexed", realmId, total));
+    }
+}
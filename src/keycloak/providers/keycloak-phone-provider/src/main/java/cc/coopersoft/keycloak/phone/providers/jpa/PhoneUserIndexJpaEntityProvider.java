@@ -0,0 +1,27 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class PhoneUserIndexJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(PhoneUserIndex.class, PhoneUserIndexState.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/changelog/phone-user-index-changelog.xml";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getFactoryId() {
+        return PhoneUserIndexJpaEntityProviderFactory.PROVIDER_ID;
+    }
+}
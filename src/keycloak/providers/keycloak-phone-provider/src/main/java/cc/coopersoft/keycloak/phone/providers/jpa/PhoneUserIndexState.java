@@ -0,0 +1,24 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * Marks the PHONE_USER_INDEX of a realm as backfilled. Kept next to the index rather than in the realm
+ * attributes, so that it is never exported with the realm into a database whose index is empty.
+ */
+@Entity
+@Data
+@Table(name = "PHONE_USER_INDEX_STATE")
+public class PhoneUserIndexState {
+
+    @Id
+    @Column(name = "REALM_ID")
+    private String realmId;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "READY_AT", nullable = false)
+    private Date readyAt;
+}
@@ -0,0 +1,177 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.validation.Validation;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCache;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneUserCacheInvalidationEvent;
+import jakarta.persistence.EntityManager;
+
+/**
+ * Reads and maintains PHONE_USER_INDEX, which maps the E.164 form of each user's phoneNumber attribute to
+ * the user. A realm's index is only used for lookups once the backfill marked it ready in
+ * PHONE_USER_INDEX_STATE, and only while the realm has no user storage providers: the index is maintained
+ * from events, so users of a federation provider that does not import them are never indexed. Syncing a
+ * user also invalidates the cached lookups of the user.
+ */
+public class PhoneUserIndexStore {
+
+    private static final Logger logger = Logger.getLogger(PhoneUserIndexStore.class);
+
+    private final KeycloakSession session;
+
+    public PhoneUserIndexStore(KeycloakSession session) {
+        this.session = session;
+    }
+
+    private EntityManager getEntityManager() {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    public boolean isReady(RealmModel realm) {
+        return getEntityManager().find(PhoneUserIndexState.class, realm.getId()) != null;
+    }
+
+    /**
+     * @return true if lookups in the realm can be answered from the index alone
+     */
+    public boolean isUsable(RealmModel realm) {
+        return PhoneNumberConflictResolver.supports(realm) && isReady(realm);
+    }
+
+    public void markReady(String realmId) {
+        PhoneUserIndexState state = new PhoneUserIndexState();
+        state.setRealmId(realmId);
+        state.setReadyAt(new Date());
+        getEntityManager().merge(state);
+    }
+
+    /**
+     * @return the ids of the users indexed under the number, verified first
+     */
+    public List<String> findUserIds(RealmModel realm, String indexedNumber) {
+        return getEntityManager()
+                .createNamedQuery("phoneUserIndexByNumber", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("phoneNumber", indexedNumber)
+                .getResultList();
+    }
+
+    /**
+     * Brings the row of the user in line with its attributes, in the current transaction.
+     * The session context must hold the user's realm.
+     */
+    public void sync(RealmModel realm, UserModel user) {
+        String phoneNumber = user.getFirstAttribute("phoneNumber");
+        boolean verified = Boolean.parseBoolean(user.getFirstAttribute("phoneNumberVerified"));
+        upsert(realm.getId(), user.getId(), phoneNumber, verified);
+    }
+
+    void upsert(String realmId, String userId, String phoneNumber, boolean verified) {
+        EntityManager em = getEntityManager();
+        PhoneUserIndex entity = em.find(PhoneUserIndex.class, userId);
+        if (Validation.isBlank(phoneNumber)) {
+            if (entity != null) {
+                em.remove(entity);
+            }
+            return;
+        }
+        if (entity == null) {
+            entity = new PhoneUserIndex();
+            entity.setUserId(userId);
+            entity.setRealmId(realmId);
+            entity.setPhoneNumber(Utils.indexPhoneNumber(session, phoneNumber));
+            entity.setVerified(verified);
+            em.persist(entity);
+        } else {
+            entity.setRealmId(realmId);
+            entity.setPhoneNumber(Utils.indexPhoneNumber(session, phoneNumber));
+            entity.setVerified(verified);
+        }
+    }
+
+    public void remove(String userId) {
+        PhoneUserIndex entity = getEntityManager().find(PhoneUserIndex.class, userId);
+        if (entity != null) {
+            getEntityManager().remove(entity);
+        }
+    }
+
+    public void removeRealm(String realmId) {
+        getEntityManager()
+                .createNamedQuery("deletePhoneUserIndexByRealm")
+                .setParameter("realmId", realmId)
+                .executeUpdate();
+        PhoneUserIndexState state = getEntityManager().find(PhoneUserIndexState.class, realmId);
+        if (state != null) {
+            getEntityManager().remove(state);
+        }
+    }
+
+    /**
+     * Syncs the users once the current transaction has committed, in a transaction of its own so that an
+     * index conflict never fails the request that changed the user.
+     */
+    public static void syncAfterCommit(KeycloakSession session, String realmId, Collection<String> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        if (!session.getTransactionManager().isActive()) {
+            // event listeners may be called once the request transaction is already over
+            sync(session.getKeycloakSessionFactory(), realmId, userIds);
+            return;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                sync(session.getKeycloakSessionFactory(), realmId, userIds);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private static void sync(KeycloakSessionFactory sessionFactory, String realmId, Collection<String> userIds) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) {
+                    return;
+                }
+                session.getContext().setRealm(realm);
+                PhoneUserIndexStore store = new PhoneUserIndexStore(session);
+                List<PhoneUserCacheInvalidationEvent> invalidations = new ArrayList<>();
+                for (String userId : userIds) {
+                    UserModel user = session.users().getUserById(realm, userId);
+                    String phoneNumber = null;
+                    if (user == null) {
+                        store.remove(userId);
+                    } else {
+                        store.sync(realm, user);
+                        phoneNumber = user.getFirstAttribute("phoneNumber");
+                    }
+                    invalidations.add(new PhoneUserCacheInvalidationEvent(realmId, userId,
+                            Validation.isBlank(phoneNumber) ? null : Utils.indexPhoneNumber(session, phoneNumber)));
+                }
+                PhoneUserCache.invalidate(session, invalidations);
+            });
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Failed to update the phone index of users %s: %s", userIds, e.getMessage()));
+        }
+    }
+}
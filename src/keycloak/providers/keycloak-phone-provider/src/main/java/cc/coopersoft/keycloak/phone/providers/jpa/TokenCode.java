@@ -26,6 +26,23 @@ import java.util.Date;
             query = "SELECT COUNT(t) FROM TokenCode t WHERE t.realmId = :realmId " +
                 "AND t.ip = :addr " +
                 "AND t.createdAt >= :date AND t.type = :type"
+        ),
+        @NamedQuery(
+            name = "sendPreflight",
+            query = "SELECT SUM(CASE WHEN t.phoneNumber = :phoneNumber THEN 1 ELSE 0 END), " +
+                "SUM(CASE WHEN t.ip = :addr THEN 1 ELSE 0 END) " +
+                "FROM TokenCode t WHERE t.realmId = :realmId AND t.type = :type " +
+                "AND (t.phoneNumber = :phoneNumber OR t.ip = :addr) AND t.createdAt >= :date"
+        ),
+        @NamedQuery(
+            name = "purgeCandidates",
+            query = "SELECT t.createdAt, t.id FROM TokenCode t WHERE t.createdAt < :cutoff " +
+                "AND (t.createdAt > :createdAt OR (t.createdAt = :createdAt AND t.id > :id)) " +
+                "ORDER BY t.createdAt, t.id"
+        ),
+        @NamedQuery(
+            name = "purgeByIds",
+            query = "DELETE FROM TokenCode t WHERE t.id IN :ids"
         )
 })
 public class TokenCode {
@@ -0,0 +1,124 @@
+package cc.coopersoft.keycloak.phone.providers.jpa;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TemporalType;
+
+/**
+ * Deletes, or moves to PHONE_MESSAGE_TOKEN_CODE_ARCHIVE, the token codes created before the retention period.
+ * <p>
+ * Rows are walked in (CREATED_AT, ID) order with keyset pagination, each batch in its own transaction so
+ * locks are short and a failure only loses the current batch. A run stops after {@code maxBatches}, the next
+ * run picks up the remaining rows.
+ */
+public class TokenCodePurgeTask implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(TokenCodePurgeTask.class);
+
+    public static final String TASK_NAME = "phone-token-code-purge";
+
+    private static final String ARCHIVE_COLUMNS =
+            "ID, REALM_ID, PHONE_NUMBER, CODE, TYPE, CREATED_AT, EXPIRES_AT, CONFIRMED, BY_WHOM, IP, PORT, HOST";
+
+    private final long retention;
+    private final int batchSize;
+    private final int maxBatches;
+    private final boolean archive;
+    private final Counter purged;
+    private final Timer batchLatency;
+
+    /**
+     * @param retention how long rows are kept, in milliseconds
+     */
+    public TokenCodePurgeTask(long retention, int batchSize, int maxBatches, boolean archive) {
+        this.retention = retention;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.archive = archive;
+        String mode = archive ? "archive" : "delete";
+        this.purged = Counter.builder("keycloak.phone.token.code.purged")
+                .description("Token code rows removed by the purge task")
+                .tag("mode", mode)
+                .register(Metrics.globalRegistry);
+        this.batchLatency = Timer.builder("keycloak.phone.token.code.purge.batch")
+                .description("Duration of one token code purge batch")
+                .tag("mode", mode)
+                .register(Metrics.globalRegistry);
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        Date cutoff = new Date(System.currentTimeMillis() - retention);
+        Date createdAt = new Date(0);
+        String id = "";
+        int total = 0;
+
+        for (int batch = 0; batch < maxBatches; batch++) {
+            Date fromCreatedAt = createdAt;
+            String fromId = id;
+            long start = System.nanoTime();
+            List<Object[]> keys = KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(),
+                    batchSession -> purgeBatch(batchSession, cutoff, fromCreatedAt, fromId));
+            batchLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            if (keys.isEmpty()) {
+                break;
+            }
+            purged.increment(keys.size());
+            total += keys.size();
+
+            Object[] last = keys.get(keys.size() - 1);
+            createdAt = (Date) last[0];
+            id = (String) last[1];
+            if (keys.size() < batchSize) {
+                break;
+            }
+        }
+
+        if (total > 0) {
+            logger.info(String.format("%s %d token codes created before %s", archive ? "Archived" : "Purged", total, cutoff));
+        }
+    }
+
+    private List<Object[]> purgeBatch(KeycloakSession session, Date cutoff, Date createdAt, String id) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> keys = em.createNamedQuery("purgeCandidates", Object[].class)
+                .setParameter("cutoff", cutoff, TemporalType.TIMESTAMP)
+                .setParameter("createdAt", createdAt, TemporalType.TIMESTAMP)
+                .setParameter("id", id)
+                .setMaxResults(batchSize)
+                .getResultList();
+        if (keys.isEmpty()) {
+            return keys;
+        }
+
+        List<String> ids = keys.stream().map(key -> (String) key[1]).toList();
+        if (archive) {
+            em.createNativeQuery("INSERT INTO PHONE_MESSAGE_TOKEN_CODE_ARCHIVE (" + ARCHIVE_COLUMNS + ") "
+                            + "SELECT " + ARCHIVE_COLUMNS + " FROM PHONE_MESSAGE_TOKEN_CODE WHERE ID IN (:ids)")
+                    .setParameter("ids", ids)
+                    .executeUpdate();
+        }
+        em.createNamedQuery("purgeByIds")
+                .setParameter("ids", ids)
+                .executeUpdate();
+        return keys;
+    }
+}
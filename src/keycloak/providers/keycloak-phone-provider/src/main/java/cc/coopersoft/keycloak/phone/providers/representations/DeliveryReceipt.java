@@ -0,0 +1,34 @@
+package cc.coopersoft.keycloak.phone.providers.representations;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of a message the sender service accepted.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeliveryReceipt {
+
+    public static final String CHANNEL_SMS = "sms";
+    public static final String CHANNEL_WHATSAPP = "whatsapp";
+
+    /**
+     * The channel the message went out on, e.g. {@link #CHANNEL_SMS}, {@code null} if the sender does not
+     * report it.
+     */
+    private String channel;
+
+    /**
+     * The id the provider assigned to the message, {@code null} if it does not report one.
+     */
+    private String providerMessageId;
+
+    /**
+     * Milliseconds from the send call until the message was accepted (or confirmed, where the sender waits
+     * for delivery).
+     */
+    private long latency;
+}
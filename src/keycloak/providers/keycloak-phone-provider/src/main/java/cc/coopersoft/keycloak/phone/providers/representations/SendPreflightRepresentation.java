@@ -0,0 +1,29 @@
+package cc.coopersoft.keycloak.phone.providers.representations;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Outcome of the checks made before sending a token code.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SendPreflightRepresentation {
+
+    /**
+     * Codes sent to the phone number within the last hour, {@code null} when counted by the rate limiter.
+     */
+    private Long targetCount;
+
+    /**
+     * Codes sent from the source address within the last hour, {@code null} when counted by the rate limiter.
+     */
+    private Long sourceCount;
+
+    /**
+     * The live code of the phone number, {@code null} if there is none.
+     */
+    private TokenCodeRepresentation ongoing;
+}
@@ -89,10 +89,15 @@ public class TokenCodeRepresentation {
 
     // Static method to generate TokenCodeRepresentation for phone number
     public static TokenCodeRepresentation forPhoneNumber(String phoneNumber) {
+        return forPhoneNumber(phoneNumber, generateTokenCode());
+    }
+
+    // Static method to create TokenCodeRepresentation for phone number with a code from the TokenCodeGenerator
+    public static TokenCodeRepresentation forPhoneNumber(String phoneNumber, String code) {
         TokenCodeRepresentation tokenCode = new TokenCodeRepresentation();
         tokenCode.id = KeycloakModelUtils.generateId();
         tokenCode.phoneNumber = phoneNumber;
-        tokenCode.code = generateTokenCode();
+        tokenCode.code = code;
         tokenCode.confirmed = false;
         return tokenCode;
     }
@@ -107,10 +112,10 @@ public class TokenCodeRepresentation {
         return tokenCode;
     }
 
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     // Method to generate token code
     private static String generateTokenCode() {
-        SecureRandom secureRandom = new SecureRandom();
-        Integer code = secureRandom.nextInt(999_999);
-        return String.format("%06d", code);
+        return String.format("%06d", RANDOM.nextInt(1_000_000));
     }
 }
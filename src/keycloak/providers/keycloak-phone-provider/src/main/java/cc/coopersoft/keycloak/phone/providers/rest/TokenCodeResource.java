@@ -1,10 +1,12 @@
 package cc.coopersoft.keycloak.phone.providers.rest;
 
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
 import org.keycloak.services.validation.Validation;
 
 import cc.coopersoft.keycloak.phone.Utils;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageDispatchRejectedException;
 import cc.coopersoft.keycloak.phone.providers.exception.PhoneNumberInvalidException;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import jakarta.validation.constraints.NotBlank;
@@ -17,6 +19,7 @@ import jakarta.ws.rs.QueryParam;
 import org.jboss.resteasy.annotations.cache.NoCache;
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
 import org.jboss.logging.Logger;
 
@@ -56,7 +59,9 @@ public class TokenCodeResource {
         }
 
         // check if phone number exists
-        boolean phoneNumberExists = !Utils.findUserByPhone(session, session.getContext().getRealm(), phoneNumber).isEmpty();
+        var realm = session.getContext().getRealm();
+        var user = Utils.findUserByPhone(session, realm, phoneNumber);
+        boolean phoneNumberExists = user.isPresent();
 
         // check if the phone number is valid for the requested operation
         if ((TokenCodeType.AUTH.equals(tokenCodeType) || TokenCodeType.RESET.equals(tokenCodeType)) && !phoneNumberExists) {
@@ -66,7 +71,19 @@ public class TokenCodeResource {
         }
 
         logger.info(String.format("Requested %s code to %s", tokenCodeType.label, phoneNumber));
-        int tokenExpiresIn = phoneProvider.sendTokenCode(phoneNumber, session.getContext().getConnection().getRemoteAddr(), tokenCodeType, kind);
+        int tokenExpiresIn;
+        try {
+            // the user was just looked up, spare the sender doing it again for the message locale
+            String locale = Utils.messageLocale(realm, user.map(u -> u.getFirstAttribute(UserModel.LOCALE)));
+            tokenExpiresIn = phoneProvider.sendTokenCode(phoneNumber, session.getContext().getConnection().getRemoteAddr(), tokenCodeType, kind, locale);
+        } catch (MessageDispatchRejectedException e) {
+            // build the response here, the default error mapping drops the Retry-After header
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, e.getRetryAfter())
+                    .entity(String.format("{\"error\":\"%s\"}", e.getMessage()))
+                    .type(APPLICATION_JSON_TYPE)
+                    .build();
+        }
 
         String response = String.format("{\"expires_in\":%s}", tokenExpiresIn);
 
@@ -0,0 +1,84 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReceipt;
+
+/**
+ * Runs blocking sends on a small pool shared by the senders of this node, so a sender without a native
+ * non-blocking client can still hand back a stage its caller can time out or hedge on.
+ * <p>
+ * The send runs after the request thread moved on: it must not touch the Keycloak session, anything it
+ * needs from there is resolved before submitting. A full queue fails the stage instead of blocking, and
+ * cancelling the stage interrupts the send.
+ */
+public final class BlockingSendExecutor {
+
+    private static final int THREADS = 8;
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                Thread thread = new Thread(runnable, "phone-blocking-send-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private BlockingSendExecutor() {
+    }
+
+    @FunctionalInterface
+    public interface BlockingSend {
+
+        /**
+         * @return the receipt, or null when the send does not tell the channel or the message id
+         */
+        DeliveryReceipt send() throws MessageSendException;
+    }
+
+    /**
+     * @return a stage completing with the receipt once the send returned, failed with its
+     * {@link MessageSendException}
+     */
+    public static CompletionStage<DeliveryReceipt> submit(BlockingSend send) {
+        CompletableFuture<DeliveryReceipt> result = new CompletableFuture<>();
+        long start = System.currentTimeMillis();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                try {
+                    DeliveryReceipt receipt = send.send();
+                    result.complete(receipt != null ? receipt
+                            : new DeliveryReceipt(null, null, System.currentTimeMillis() - start));
+                } catch (MessageSendException e) {
+                    result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(new MessageSendException(e.getMessage(), e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new MessageSendException("Too many messages in flight, please try again shortly.", e));
+            return result;
+        }
+        result.whenComplete((receipt, error) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+}
@@ -3,16 +3,18 @@ package cc.coopersoft.keycloak.phone.providers.spi;
 import java.text.MessageFormat;
 import java.util.Locale;
 import java.util.Optional;
-import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.UserModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.theme.Theme;
 
 import cc.coopersoft.keycloak.phone.Utils;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReceipt;
 
 public abstract class FullSmsSenderAbstractService implements MessageSenderService {
 
@@ -38,10 +40,66 @@ public abstract class FullSmsSenderAbstractService implements MessageSenderServi
     @Override
     public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind)
             throws MessageSendException {
+        sendSmsMessage(type, phoneNumber, code, expires, kind, null);
+    }
+
+    @Override
+    public void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind, String locale)
+            throws MessageSendException {
+        sendCodeMessage(phoneNumber, code, buildMessage(type, phoneNumber, code, expires, locale));
+    }
+
+    @Override
+    public CompletionStage<DeliveryReceipt> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                                int expires, String kind, String locale) {
+        // the message is localized on the calling thread, which owns the session
+        return sendCodeMessageAsync(phoneNumber, code, buildMessage(type, phoneNumber, code, expires, locale));
+    }
+
+    /**
+     * Sends the message carrying a token code, override when the channel needs the code itself, e.g. as a
+     * template variable, instead of reading it back from the text.
+     */
+    protected void sendCodeMessage(String phoneNumber, String code, String message) throws MessageSendException {
+        sendMessage(phoneNumber, message);
+    }
+
+    /**
+     * Non-blocking variant of {@link #sendCodeMessage(String, String, String)}.
+     */
+    protected CompletionStage<DeliveryReceipt> sendCodeMessageAsync(String phoneNumber, String code, String message) {
+        return sendMessageAsync(phoneNumber, message);
+    }
+
+    /**
+     * Non-blocking variant of {@link #sendMessage(String, String)}, override to send natively. The default
+     * sends on the calling thread and returns a completed stage; a provider whose {@code sendMessage} does
+     * not use the session can return {@link #sendMessageOffThread(String, String)} instead.
+     */
+    protected CompletionStage<DeliveryReceipt> sendMessageAsync(String phoneNumber, String message) {
+        long start = System.currentTimeMillis();
+        try {
+            sendMessage(phoneNumber, message);
+            return CompletableFuture.completedFuture(new DeliveryReceipt(null, null, System.currentTimeMillis() - start));
+        } catch (MessageSendException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Runs {@link #sendMessage(String, String)} on the shared {@link BlockingSendExecutor}.
+     */
+    protected final CompletionStage<DeliveryReceipt> sendMessageOffThread(String phoneNumber, String message) {
+        return BlockingSendExecutor.submit(() -> {
+            sendMessage(phoneNumber, message);
+            return null;
+        });
+    }
+
+    private String buildMessage(TokenCodeType type, String phoneNumber, String code, int expires, String locale) {
         final String defaultMessage = String.format("%s: %s is your %s code. This code expires in %s minutes.",
                 realmDisplay.toUpperCase(), code, type.label, expires / 60);
-        final String MESSAGE = localizeMessage(type, phoneNumber, code, expires).orElse(defaultMessage);
-        sendMessage(phoneNumber, MESSAGE);
+        return localizeMessage(type, phoneNumber, code, expires, locale).orElse(defaultMessage);
     }
 
     /**
@@ -51,33 +109,28 @@ public abstract class FullSmsSenderAbstractService implements MessageSenderServi
      * @param phoneNumber the user's phone number (if applicable)
      * @param code the verification code
      * @param expires code expiration in seconds
+     * @param localeHint locale already known to the caller, null to look up the user with the number
      * @return The localized string, else empty.
      */
-    private Optional<String> localizeMessage(TokenCodeType type, String phoneNumber, String code, int expires) {
+    private Optional<String> localizeMessage(TokenCodeType type, String phoneNumber, String code, int expires, String localeHint) {
         if (this.session != null) {
             try {
-                final String loginThemeName = session.getContext().getRealm().getLoginTheme();
-                final Theme loginTheme = session.theme().getTheme(loginThemeName, Theme.Type.LOGIN);
+                final RealmModel realm = session.getContext().getRealm();
+                final Theme loginTheme = session.theme().getTheme(realm.getLoginTheme(), Theme.Type.LOGIN);
 
                 // Ensure user locale is set
-                final Optional<UserModel> user = Utils.findUserByPhone(session, session.getContext().getRealm(), phoneNumber);
-                final Optional<String> userLocale = user.map(u -> u.getFirstAttribute(UserModel.LOCALE));
-                final String localeName = userLocale.orElseGet(() -> {
-                    String realmLocale = session.getContext().getRealm().getDefaultLocale();
-                    return (realmLocale != null && !realmLocale.isEmpty()) ? realmLocale : "en";
-                });
+                final String localeName = localeHint != null ? localeHint
+                        : Utils.messageLocale(realm, Utils.findUserLocaleByPhone(session, realm, phoneNumber));
 
                 final Locale locale = Locale.forLanguageTag(localeName);
-                final Properties messages = loginTheme.getMessages(locale);
-                final String messageTemplate = messages.getProperty("smsCodeMessage", "");
+                final MessageFormat mf = MessageTemplateCache.get(loginTheme, locale, "smsCodeMessage");
 
                 // Log if template is missing
-                if (messageTemplate.isBlank()) {
+                if (mf == null) {
                     logger.warn("smsCodeMessage key not found in theme bundle for locale: " + localeName);
                     return Optional.empty();
                 }
 
-                MessageFormat mf = new MessageFormat(messageTemplate, locale);
                 return Optional.of(mf.format(new Object[]{realmDisplay, type.label, code, expires / 60}));
             } catch (Exception ex) {
                 logger.error("Error while trying to localize message", ex);
@@ -2,8 +2,12 @@ package cc.coopersoft.keycloak.phone.providers.spi;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReceipt;
 import org.keycloak.provider.Provider;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 
 /**
  * SMS, Voice, APP
@@ -14,4 +18,36 @@ public interface MessageSenderService extends Provider {
 
 
     void sendSmsMessage(TokenCodeType type, String phoneNumber, String code , int expires , String kind) throws MessageSendException;
+
+    /**
+     * @param locale language tag the caller already resolved for the recipient, null when unknown
+     */
+    default void sendSmsMessage(TokenCodeType type, String phoneNumber, String code, int expires, String kind, String locale)
+            throws MessageSendException {
+        sendSmsMessage(type, phoneNumber, code, expires, kind);
+    }
+
+    /**
+     * Non-blocking variant of {@link #sendSmsMessage(TokenCodeType, String, String, int, String, String)}, a
+     * failed stage carries a {@link MessageSendException}. Whatever needs the Keycloak session is done before
+     * returning, the stage may complete on another thread. A caller that gives up cancels the stage, the
+     * provider then sends nothing it has not sent yet, e.g. no fallback on another channel.
+     * <p>
+     * The default adapts the blocking call: it sends on the calling thread and returns an already completed
+     * stage, so the caller waits for the whole send and cannot time out or hedge it. Providers without a
+     * native non-blocking client whose send does not need the session can hand the blocking call to
+     * {@link BlockingSendExecutor#submit}, or extend {@link FullSmsSenderAbstractService} and return
+     * {@code sendMessageOffThread} from {@code sendMessageAsync}.
+     */
+    default CompletionStage<DeliveryReceipt> sendSmsMessageAsync(TokenCodeType type, String phoneNumber, String code,
+                                                                 int expires, String kind, String locale) {
+        long start = System.currentTimeMillis();
+        try {
+            sendSmsMessage(type, phoneNumber, code, expires, kind, locale);
+            // the blocking call does not tell the channel or the message id
+            return CompletableFuture.completedFuture(new DeliveryReceipt(null, null, System.currentTimeMillis() - start));
+        } catch (MessageSendException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
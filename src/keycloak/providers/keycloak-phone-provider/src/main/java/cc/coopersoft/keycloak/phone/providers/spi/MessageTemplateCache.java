@@ -0,0 +1,47 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Locale;
+
+import org.keycloak.theme.Theme;
+
+import cc.coopersoft.common.LruCache;
+
+/**
+ * Compiled message templates of the themes, keyed by (theme, locale, message key). An entry remembers the
+ * theme instance it was read from: Keycloak hands out a new instance when a theme is redeployed or theme
+ * caching is off, and the template is then read again.
+ */
+final class MessageTemplateCache {
+
+    private static final LruCache<Key, Template> TEMPLATES = new LruCache<Key, Template>(1000, 0)
+            .registerMetrics("keycloak.phone.message.template.cache", "SMS message template lookups");
+
+    private record Key(String theme, Locale locale, String messageKey) {
+    }
+
+    /**
+     * @param format null when the theme has no such message
+     */
+    private record Template(Theme theme, MessageFormat format) {
+    }
+
+    private MessageTemplateCache() {
+    }
+
+    /**
+     * @return a format the caller owns, or null when the theme bundle lacks the message
+     */
+    static MessageFormat get(Theme theme, Locale locale, String messageKey) throws IOException {
+        Key key = new Key(theme.getName(), locale, messageKey);
+        Template template = TEMPLATES.get(key);
+        if (template == null || template.theme() != theme) {
+            String pattern = theme.getMessages(locale).getProperty(messageKey, "");
+            template = new Template(theme, pattern.isBlank() ? null : new MessageFormat(pattern, locale));
+            TEMPLATES.put(key, template);
+        }
+        // MessageFormat is not thread safe, hand out copies
+        return template.format() == null ? null : (MessageFormat) template.format().clone();
+    }
+}
@@ -0,0 +1,20 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import java.util.regex.Pattern;
+
+import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
+
+/**
+ * Phone number rules of a realm, resolved from the provider config once and reused until the realm changes.
+ *
+ * @param defaultRegion region of numbers given without country code, may be null
+ * @param format        canonical output format, null to keep the number as entered
+ * @param regex         additional pattern canonical numbers must match, may be null
+ */
+public record PhonePolicy(String defaultRegion, PhoneNumberFormat format, Pattern regex,
+                          boolean validPhoneNumber, boolean compatibleMode, boolean duplicatePhoneAllowed) {
+
+    public boolean matches(String phoneNumber) {
+        return regex == null || regex.matcher(phoneNumber).matches();
+    }
+}
@@ -11,6 +11,11 @@ public interface PhoneProvider extends Provider {
     //TODO on key login support
     //boolean Verification(String phoneNumber, String token);
 
+    /**
+     * Phone number rules of the current realm, the flags and values below are shortcuts into it.
+     */
+    PhonePolicy phonePolicy();
+
     boolean isDuplicatePhoneAllowed();
 
     boolean validPhoneNumber();
@@ -19,13 +24,33 @@ public interface PhoneProvider extends Provider {
 
     int otpExpires();
 
+    int tokenExpiresIn();
+
+    /**
+     * Whether the number is one of the configured test numbers, which get a fixed code and no SMS.
+     */
+    boolean isTestPhoneNumber(String phoneNumber);
+
+    /**
+     * Whether token codes are derived from the realm HMAC key instead of being generated and stored.
+     */
+    boolean statelessCodes();
+
     Optional<String> canonicalizePhoneNumber();
 
     Optional<String> defaultPhoneRegion();
 
     Optional<String> phoneNumberRegex();
 
-    int sendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind);
+    default int sendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind) {
+        return sendTokenCode(phoneNumber, sourceAddr, type, kind, null);
+    }
+
+    /**
+     * @param locale language tag of the message when the caller already knows it, null to resolve it from
+     *               the user with the number
+     */
+    int sendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind, String locale);
 
 
 
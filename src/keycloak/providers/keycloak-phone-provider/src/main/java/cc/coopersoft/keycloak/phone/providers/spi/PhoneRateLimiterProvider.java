@@ -0,0 +1,20 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import org.keycloak.provider.Provider;
+
+/**
+ * Counts the token codes sent within the last hour, per realm and type, by target phone number and by
+ * source address. A limit is exceeded when more than {@code maximum} codes were already sent.
+ */
+public interface PhoneRateLimiterProvider extends Provider {
+
+    boolean isTargetExceeded(String phoneNumber, TokenCodeType tokenCodeType, int maximum);
+
+    boolean isSourceExceeded(String sourceAddr, TokenCodeType tokenCodeType, int maximum);
+
+    /**
+     * Records a token code that was issued, {@code sourceAddr} may be null.
+     */
+    void sent(String phoneNumber, String sourceAddr, TokenCodeType tokenCodeType);
+}
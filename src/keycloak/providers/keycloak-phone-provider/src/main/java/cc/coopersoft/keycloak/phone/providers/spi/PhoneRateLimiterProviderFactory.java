@@ -0,0 +1,6 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import org.keycloak.provider.ProviderFactory;
+
+public interface PhoneRateLimiterProviderFactory extends ProviderFactory<PhoneRateLimiterProvider> {
+}
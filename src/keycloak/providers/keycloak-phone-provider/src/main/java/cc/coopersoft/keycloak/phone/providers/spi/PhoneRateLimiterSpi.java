@@ -0,0 +1,29 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+public class PhoneRateLimiterSpi implements Spi {
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "phoneRateLimiter";
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return PhoneRateLimiterProvider.class;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return PhoneRateLimiterProviderFactory.class;
+    }
+}
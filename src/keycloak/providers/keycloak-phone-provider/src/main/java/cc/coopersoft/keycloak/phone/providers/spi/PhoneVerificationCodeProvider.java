@@ -1,6 +1,7 @@
 package cc.coopersoft.keycloak.phone.providers.spi;
 
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.representations.SendPreflightRepresentation;
 import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
 import org.keycloak.models.UserModel;
 import org.keycloak.provider.Provider;
@@ -11,8 +12,20 @@ public interface PhoneVerificationCodeProvider extends Provider {
 
     boolean isAbusing(String phoneNumber, TokenCodeType tokenCodeType,String sourceAddr ,int sourceHourMaximum,int targetHourMaximum);
 
+    /**
+     * Same outcome as {@link #isAbusing} followed by {@link #ongoingProcess}, in as few round trips as the
+     * provider allows.
+     */
+    default SendPreflightRepresentation preflight(String phoneNumber, TokenCodeType tokenCodeType, String sourceAddr,
+                                                  int sourceHourMaximum, int targetHourMaximum) {
+        isAbusing(phoneNumber, tokenCodeType, sourceAddr, sourceHourMaximum, targetHourMaximum);
+        return new SendPreflightRepresentation(null, null, ongoingProcess(phoneNumber, tokenCodeType));
+    }
+
     void persistCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn);
 
+    void cancelProcess(String phoneNumber, TokenCodeType tokenCodeType, String tokenCodeId);
+
     void validateCode(UserModel user, String phoneNumber, String code);
 
     void validateCode(UserModel user, String phoneNumber, String code, TokenCodeType tokenCodeType);
@@ -0,0 +1,13 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import org.keycloak.provider.Provider;
+
+/**
+ * Generates the secret codes sent to phones. Codes must be uniformly distributed over their alphabet and
+ * never handed out twice.
+ */
+public interface TokenCodeGenerator extends Provider {
+
+    String generate(TokenCodeType tokenCodeType);
+}
@@ -0,0 +1,29 @@
+package cc.coopersoft.keycloak.phone.providers.spi;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+public class TokenCodeGeneratorSpi implements Spi {
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "phoneTokenCodeGenerator";
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return TokenCodeGenerator.class;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return TokenCodeGeneratorFactory.class;
+    }
+}
@@ -0,0 +1,93 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+/**
+ * Cluster-wide counters on Keycloak's distributed single-use object cache, one counter entry per key and
+ * hour. A check reads the counters of the current and the previous hour and weights the previous one by
+ * the part of it still inside the sliding hour, two cache reads whatever the limit.
+ * <p>
+ * The cache has no atomic increment, so a send claims the next numbered slot of its hour with putIfAbsent
+ * and then writes the slot count to the counter. Concurrent sends never share a slot; their counter
+ * writes may land out of order, which undercounts by at most the concurrent sends until the next one.
+ */
+public class ClusterRateLimiterProvider implements PhoneRateLimiterProvider {
+
+    private static final Logger logger = Logger.getLogger(ClusterRateLimiterProvider.class);
+
+    private static final String PREFIX = "phone-rate-limit::";
+    private static final String COUNT = "count";
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1);
+    // the counter of an hour is still read during the next one
+    private static final long LIFESPAN = TimeUnit.HOURS.toSeconds(2);
+
+    private final KeycloakSession session;
+    private final int maxEvents;
+
+    ClusterRateLimiterProvider(KeycloakSession session, int maxEvents) {
+        this.session = session;
+        this.maxEvents = maxEvents;
+    }
+
+    private SingleUseObjectProvider getCache() {
+        return session.singleUseObjects();
+    }
+
+    private static String counterKey(String key, long window) {
+        return PREFIX + key + "::" + window;
+    }
+
+    private int count(String counterKey) {
+        Map<String, String> notes = getCache().get(counterKey);
+        return notes == null ? 0 : Integer.parseInt(notes.get(COUNT));
+    }
+
+    @Override
+    public boolean isTargetExceeded(String phoneNumber, TokenCodeType tokenCodeType, int maximum) {
+        return isExceeded(MemoryRateLimiterProvider.targetKey(session, phoneNumber, tokenCodeType), maximum);
+    }
+
+    @Override
+    public boolean isSourceExceeded(String sourceAddr, TokenCodeType tokenCodeType, int maximum) {
+        return sourceAddr != null && isExceeded(MemoryRateLimiterProvider.sourceKey(session, sourceAddr, tokenCodeType), maximum);
+    }
+
+    private boolean isExceeded(String key, int maximum) {
+        long now = System.currentTimeMillis();
+        long window = now / WINDOW;
+        double previousWeight = 1.0 - (double) (now % WINDOW) / WINDOW;
+        double count = count(counterKey(key, window)) + count(counterKey(key, window - 1)) * previousWeight;
+        return count > maximum;
+    }
+
+    @Override
+    public void sent(String phoneNumber, String sourceAddr, TokenCodeType tokenCodeType) {
+        record(MemoryRateLimiterProvider.targetKey(session, phoneNumber, tokenCodeType));
+        if (sourceAddr != null) {
+            record(MemoryRateLimiterProvider.sourceKey(session, sourceAddr, tokenCodeType));
+        }
+    }
+
+    private void record(String key) {
+        String counterKey = counterKey(key, System.currentTimeMillis() / WINDOW);
+        // the counter is usually up to date, so the first claim succeeds
+        for (int slot = count(counterKey); slot < maxEvents; slot++) {
+            if (getCache().putIfAbsent(counterKey + "::" + slot, LIFESPAN)) {
+                getCache().put(counterKey, LIFESPAN, Map.of(COUNT, String.valueOf(slot + 1)));
+                return;
+            }
+        }
+        logger.warn(String.format("All %d rate limit slots of %s are taken", maxEvents, key));
+    }
+
+    @Override
+    public void close() {
+    }
+}
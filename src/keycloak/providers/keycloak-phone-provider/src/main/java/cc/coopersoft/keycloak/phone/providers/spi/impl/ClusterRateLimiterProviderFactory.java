@@ -0,0 +1,35 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProviderFactory;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class ClusterRateLimiterProviderFactory implements PhoneRateLimiterProviderFactory {
+
+    private int maxEvents;
+
+    @Override
+    public PhoneRateLimiterProvider create(KeycloakSession session) {
+        return new ClusterRateLimiterProvider(session, maxEvents);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        maxEvents = scope.getInt("maxEvents", 100);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return "cluster";
+    }
+}
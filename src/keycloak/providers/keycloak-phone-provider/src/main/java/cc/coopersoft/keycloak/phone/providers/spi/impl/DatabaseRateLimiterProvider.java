@@ -0,0 +1,63 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TemporalType;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Counts the PHONE_MESSAGE_TOKEN_CODE rows of the last hour, the sends are recorded by the token code rows.
+ */
+public class DatabaseRateLimiterProvider implements PhoneRateLimiterProvider {
+
+    private final KeycloakSession session;
+
+    DatabaseRateLimiterProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    private EntityManager getEntityManager() {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    private Date oneHourAgo() {
+        return new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Override
+    public boolean isTargetExceeded(String phoneNumber, TokenCodeType tokenCodeType, int maximum) {
+        long targetCount = getEntityManager()
+                .createNamedQuery("processesSinceTarget", Long.class)
+                .setParameter("realmId", session.getContext().getRealm().getId())
+                .setParameter("phoneNumber", phoneNumber)
+                .setParameter("date", oneHourAgo(), TemporalType.TIMESTAMP)
+                .setParameter("type", tokenCodeType.name())
+                .getSingleResult();
+        return targetCount > maximum;
+    }
+
+    @Override
+    public boolean isSourceExceeded(String sourceAddr, TokenCodeType tokenCodeType, int maximum) {
+        long sourceCount = getEntityManager()
+                .createNamedQuery("processesSinceSource", Long.class)
+                .setParameter("realmId", session.getContext().getRealm().getId())
+                .setParameter("addr", sourceAddr)
+                .setParameter("date", oneHourAgo(), TemporalType.TIMESTAMP)
+                .setParameter("type", tokenCodeType.name())
+                .getSingleResult();
+        return sourceCount > maximum;
+    }
+
+    @Override
+    public void sent(String phoneNumber, String sourceAddr, TokenCodeType tokenCodeType) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
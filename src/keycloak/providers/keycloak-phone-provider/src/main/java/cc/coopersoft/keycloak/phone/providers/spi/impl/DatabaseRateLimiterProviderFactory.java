@@ -0,0 +1,41 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProviderFactory;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Counts the token code rows of the last hour, the default rate limiter: the limits hold across the
+ * cluster and survive restarts.
+ */
+public class DatabaseRateLimiterProviderFactory implements PhoneRateLimiterProviderFactory {
+
+    @Override
+    public PhoneRateLimiterProvider create(KeycloakSession session) {
+        return new DatabaseRateLimiterProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int order() {
+        return 10;
+    }
+
+    @Override
+    public String getId() {
+        return "database";
+    }
+}
@@ -1,23 +1,28 @@
 package cc.coopersoft.keycloak.phone.providers.spi.impl;
 
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.services.validation.Validation;
 
+import cc.coopersoft.common.CircuitBreaker;
 import cc.coopersoft.common.OptionalUtils;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.dispatch.MessageDispatcher;
+import cc.coopersoft.keycloak.phone.providers.dispatch.MessageOutbox;
+import cc.coopersoft.keycloak.phone.providers.dispatch.SenderCircuitBreakers;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
 import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import cc.coopersoft.keycloak.phone.providers.spi.PhonePolicy;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.TokenCodeGenerator;
 import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.ServiceUnavailableException;
 
@@ -32,40 +37,26 @@ public class DefaultPhoneProvider implements PhoneProvider {
     private final Set<String> testPhoneNumbers;
 
     private final Scope config;
-
-    DefaultPhoneProvider(KeycloakSession session, Scope config) {
+    private final MessageDispatcher dispatcher;
+    private final MessageOutbox outbox;
+    private final PhonePolicies policies;
+    private final SenderCircuitBreakers breakers;
+
+    DefaultPhoneProvider(KeycloakSession session, Scope config, PhoneProviderSettings settings,
+                         MessageDispatcher dispatcher, MessageOutbox outbox, PhonePolicies policies,
+                         SenderCircuitBreakers breakers) {
         this.session = session;
         this.config = config;
-
-        this.service = session.listProviderIds(MessageSenderService.class)
-                .stream().filter(s -> s.equals(config.get("service")))
-                .findFirst().orElse(
-                        session.listProviderIds(MessageSenderService.class)
-                                .stream().findFirst().orElse(null)
-                );
-
-        if (Validation.isBlank(this.service)) {
-            logger.error("Message sender service provider not found!");
-        }
-
-        if (Validation.isBlank(config.get("service"))) {
-            logger.warn("No message sender service provider specified! Default provider'"
-                    + this.service + "' will be used. You can use keycloak start param '--spi-phone-default-service' to specify a different one. ");
-        }
-
-        this.tokenExpiresIn = config.getInt("tokenExpiresIn", 60);
-        this.targetHourMaximum = config.getInt("targetHourMaximum", 3);
-        this.sourceHourMaximum = config.getInt("sourceHourMaximum", 10);
-
-        // Read test phone numbers from environment variable or config
-        // Format: "+27123456789,+27987654321,+1234567890" (comma-separated)
-        String testPhoneNumbersEnv = System.getenv("TEST_PHONE_NUMBERS");
-        if (testPhoneNumbersEnv != null && !testPhoneNumbersEnv.trim().isEmpty()) {
-            this.testPhoneNumbers = new HashSet<>(Arrays.asList(testPhoneNumbersEnv.split("\\s*,\\s*")));
-            logger.info("Test phone numbers configured: " + this.testPhoneNumbers);
-        } else {
-            this.testPhoneNumbers = new HashSet<>();
-        }
+        this.dispatcher = dispatcher;
+        this.outbox = outbox;
+        this.policies = policies;
+        this.breakers = breakers;
+
+        this.service = settings.service();
+        this.tokenExpiresIn = settings.tokenExpiresIn();
+        this.targetHourMaximum = settings.targetHourMaximum();
+        this.sourceHourMaximum = settings.sourceHourMaximum();
+        this.testPhoneNumbers = settings.testPhoneNumbers();
     }
 
     @Override
@@ -81,31 +72,44 @@ public class DefaultPhoneProvider implements PhoneProvider {
     }
 
     private Optional<String> getStringConfigValue(String configName) {
-        return OptionalUtils.ofBlank(OptionalUtils.ofBlank(config.get(getRealmName() + "-" + configName))
-                .orElse(config.get(configName)));
+        return getStringConfigValue(config, getRealmName(), configName);
     }
 
     private boolean getBooleanConfigValue(String configName, boolean defaultValue) {
-        Boolean result = config.getBoolean(getRealmName() + "-" + configName, null);
+        return getBooleanConfigValue(config, getRealmName(), configName, defaultValue);
+    }
+
+    static Optional<String> getStringConfigValue(Scope config, String realmName, String configName) {
+        return OptionalUtils.ofBlank(OptionalUtils.ofBlank(config.get(realmName + "-" + configName))
+                .orElse(config.get(configName)));
+    }
+
+    static boolean getBooleanConfigValue(Scope config, String realmName, String configName, boolean defaultValue) {
+        Boolean result = config.getBoolean(realmName + "-" + configName, null);
         if (result == null) {
             result = config.getBoolean(configName, defaultValue);
         }
         return result;
     }
 
+    @Override
+    public PhonePolicy phonePolicy() {
+        return policies.get(session.getContext().getRealm());
+    }
+
     @Override
     public boolean isDuplicatePhoneAllowed() {
-        return getBooleanConfigValue("duplicate-phone", false);
+        return phonePolicy().duplicatePhoneAllowed();
     }
 
     @Override
     public boolean validPhoneNumber() {
-        return getBooleanConfigValue("valid-phone", true);
+        return phonePolicy().validPhoneNumber();
     }
 
     @Override
     public boolean compatibleMode() {
-        return getBooleanConfigValue("compatible", false);
+        return phonePolicy().compatibleMode();
     }
 
     @Override
@@ -113,23 +117,38 @@ public class DefaultPhoneProvider implements PhoneProvider {
         return getStringConfigValue("otp-expires").map(Integer::valueOf).orElse(60 * 60);
     }
 
+    @Override
+    public int tokenExpiresIn() {
+        return tokenExpiresIn;
+    }
+
+    @Override
+    public boolean isTestPhoneNumber(String phoneNumber) {
+        return testPhoneNumbers.contains(phoneNumber);
+    }
+
+    @Override
+    public boolean statelessCodes() {
+        return getBooleanConfigValue("stateless-codes", false);
+    }
+
     @Override
     public Optional<String> canonicalizePhoneNumber() {
-        return getStringConfigValue("canonicalize-phone-numbers");
+        return Optional.ofNullable(phonePolicy().format()).map(Enum::name);
     }
 
     @Override
     public Optional<String> defaultPhoneRegion() {
-        return getStringConfigValue("phone-default-region");
+        return Optional.ofNullable(phonePolicy().defaultRegion());
     }
 
     @Override
     public Optional<String> phoneNumberRegex() {
-        return getStringConfigValue("number-regex");
+        return Optional.ofNullable(phonePolicy().regex()).map(Pattern::pattern);
     }
 
     @Override
-    public int sendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind) {
+    public int sendTokenCode(String phoneNumber, String sourceAddr, TokenCodeType type, String kind, String locale) {
 
         logger.info(String.format("Attempting to send %s code to phone: %s from source: %s",
                 type.label, phoneNumber, sourceAddr != null ? sourceAddr : "unknown"));
@@ -137,39 +156,86 @@ public class DefaultPhoneProvider implements PhoneProvider {
         logger.debug(String.format("Checking abuse limits for %s - target hour max: %d, source hour max: %d",
                 phoneNumber, targetHourMaximum, sourceHourMaximum));
 
-        getTokenCodeService().isAbusing(phoneNumber, type, sourceAddr, sourceHourMaximum, targetHourMaximum);
-
-        TokenCodeRepresentation ongoing = getTokenCodeService().ongoingProcess(phoneNumber, type);
+        boolean statelessCodes = statelessCodes();
+        TokenCodeRepresentation ongoing = null;
+        if (statelessCodes) {
+            // nothing is stored per code, a resend within the window carries the same code
+            getTokenCodeService().isAbusing(phoneNumber, type, sourceAddr, sourceHourMaximum, targetHourMaximum);
+        } else {
+            ongoing = getTokenCodeService()
+                    .preflight(phoneNumber, type, sourceAddr, sourceHourMaximum, targetHourMaximum)
+                    .getOngoing();
+        }
         if (ongoing != null) {
-            logger.info(String.format("Ongoing %s code already exists for %s, expires in %d seconds",
-                    type.label, phoneNumber,
-                    (int) ((ongoing.getExpiresAt().getTime() - Instant.now().toEpochMilli()) / 1000)));
+            throw alreadySent(phoneNumber, type, ongoing);
+        }
 
-            int expiryTime = (int) ((ongoing.getExpiresAt().getTime() - Instant.now().toEpochMilli()) / 1000);
+        // Check if this is a test phone number
+        boolean isTestPhoneNumber = isTestPhoneNumber(phoneNumber);
 
-            // We have already sent an OTP to {0}, use this pin, or wait {1} before requesting a new one.
-            throw new BadRequestException(String.format("ALREADY_SENT Expiry: %d", expiryTime));
+        // test numbers always get the fixed code, nothing is sent that concurrent requests could duplicate
+        boolean claimed = !statelessCodes && !isTestPhoneNumber;
+        if (claimed && !TokenCodeSendClaims.claim(session, phoneNumber, type, tokenExpiresIn)) {
+            // a concurrent request passed the same check and is sending the code, its row may not be visible yet
+            throw alreadySent(phoneNumber, type, getTokenCodeService().ongoingProcess(phoneNumber, type));
         }
 
-        // Check if this is a test phone number
-        boolean isTestPhoneNumber = testPhoneNumbers.contains(phoneNumber);
+        try {
+            return issueTokenCode(phoneNumber, type, kind, locale, statelessCodes, isTestPhoneNumber);
+        } catch (RuntimeException e) {
+            // callers may answer the failure and still commit, nothing was stored or sent to hold the claim for
+            if (claimed) {
+                TokenCodeSendClaims.release(session, phoneNumber, type);
+            }
+            throw e;
+        }
+    }
 
+    private int issueTokenCode(String phoneNumber, TokenCodeType type, String kind, String locale,
+                               boolean statelessCodes, boolean isTestPhoneNumber) {
         TokenCodeRepresentation token;
         if (isTestPhoneNumber) {
             // For test phone number, use hardcoded code '1234'
             token = TokenCodeRepresentation.forTestPhoneNumber(phoneNumber);
             logger.info(String.format("Using test OTP code '1234' for test phone number: %s", phoneNumber));
+        } else if (statelessCodes) {
+            token = TokenCodeRepresentation.forPhoneNumber(phoneNumber,
+                    HmacTokenCodes.derive(session, phoneNumber, type, HmacTokenCodes.window(tokenExpiresIn)));
         } else {
             // For normal phone numbers, generate random code
-            token = TokenCodeRepresentation.forPhoneNumber(phoneNumber);
+            token = TokenCodeRepresentation.forPhoneNumber(phoneNumber,
+                    session.getProvider(TokenCodeGenerator.class).generate(type));
             logger.debug(String.format("Generated new token code for %s with expiry of %d seconds", phoneNumber, tokenExpiresIn));
         }
 
+        if (outbox != null && !isTestPhoneNumber) {
+            // written with the code, sent by the outbox dispatcher of whichever node claims it
+            persistCode(token, type, statelessCodes);
+            outbox.enqueue(session, new MessageDispatcher.DispatchJob(
+                    session.getContext().getRealm().getId(), service, token.getId(), type,
+                    phoneNumber, token.getCode(), tokenExpiresIn, kind, locale));
+            logger.debug(String.format("Wrote %s code to %s to the outbox for service: %s (expires in %d seconds)",
+                    type.label, phoneNumber, service, tokenExpiresIn));
+            return tokenExpiresIn;
+        }
+
+        if (dispatcher != null && !isTestPhoneNumber) {
+            // Fail fast with 503 while the request can still report it, then send after commit
+            MessageDispatcher.Reservation reservation = dispatcher.reserve(session);
+            persistCode(token, type, statelessCodes);
+            reservation.dispatchAfterCommit(new MessageDispatcher.DispatchJob(
+                    session.getContext().getRealm().getId(), service, token.getId(), type,
+                    phoneNumber, token.getCode(), tokenExpiresIn, kind, locale));
+            logger.debug(String.format("Queued %s code to %s using service: %s (expires in %d seconds)",
+                    type.label, phoneNumber, service, tokenExpiresIn));
+            return tokenExpiresIn;
+        }
+
         try {
             if (!isTestPhoneNumber) {
                 // Only send SMS for non-test phone numbers
                 logger.debug(String.format("Using message service: %s to send %s code", service, type.label));
-                session.getProvider(MessageSenderService.class, service).sendSmsMessage(type, phoneNumber, token.getCode(), tokenExpiresIn, kind);
+                send(type, phoneNumber, token.getCode(), kind, locale);
                 logger.info(String.format("Successfully sent %s code to %s using service: %s (expires in %d seconds)",
                         type.label, phoneNumber, service, tokenExpiresIn));
             } else {
@@ -178,7 +244,7 @@ public class DefaultPhoneProvider implements PhoneProvider {
                         phoneNumber, token.getCode(), tokenExpiresIn));
             }
 
-            getTokenCodeService().persistCode(token, type, tokenExpiresIn);
+            persistCode(token, type, statelessCodes);
 
         } catch (MessageSendException e) {
             logger.error(String.format("Failed to send %s code to %s: %s", type.label, phoneNumber, e.getMessage()), e);
@@ -187,4 +253,42 @@ public class DefaultPhoneProvider implements PhoneProvider {
 
         return tokenExpiresIn;
     }
+
+    private void send(TokenCodeType type, String phoneNumber, String code, String kind, String locale)
+            throws MessageSendException {
+        MessageSenderService sender = session.getProvider(MessageSenderService.class, service);
+        if (breakers == null) {
+            sender.sendSmsMessage(type, phoneNumber, code, tokenExpiresIn, kind, locale);
+            return;
+        }
+        CircuitBreaker.Call call = breakers.acquire(service);
+        try {
+            sender.sendSmsMessage(type, phoneNumber, code, tokenExpiresIn, kind, locale);
+            call.success();
+        } catch (MessageSendException | RuntimeException e) {
+            SenderCircuitBreakers.failed(call, e);
+            throw e;
+        }
+    }
+
+    private BadRequestException alreadySent(String phoneNumber, TokenCodeType type, TokenCodeRepresentation ongoing) {
+        int expiryTime = ongoing == null ? tokenExpiresIn
+                : (int) ((ongoing.getExpiresAt().getTime() - Instant.now().toEpochMilli()) / 1000);
+        logger.info(String.format("Ongoing %s code already exists for %s, expires in %d seconds",
+                type.label, phoneNumber, expiryTime));
+
+        // We have already sent an OTP to {0}, use this pin, or wait {1} before requesting a new one.
+        return new BadRequestException(String.format("ALREADY_SENT Expiry: %d", expiryTime));
+    }
+
+    private void persistCode(TokenCodeRepresentation token, TokenCodeType type, boolean statelessCodes) {
+        if (statelessCodes) {
+            // only the confirmation is written, the send still counts towards the limits
+            session.getProvider(PhoneRateLimiterProvider.class).sent(token.getPhoneNumber(),
+                    session.getContext().getConnection() == null ? null : session.getContext().getConnection().getRemoteAddr(),
+                    type);
+        } else {
+            getTokenCodeService().persistCode(token, type, tokenExpiresIn);
+        }
+    }
 }
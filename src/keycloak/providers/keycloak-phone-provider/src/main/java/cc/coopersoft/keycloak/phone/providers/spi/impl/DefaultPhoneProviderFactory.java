@@ -1,31 +1,126 @@
 package cc.coopersoft.keycloak.phone.providers.spi.impl;
 
+import cc.coopersoft.common.CircuitBreaker;
+import cc.coopersoft.keycloak.phone.providers.cache.PhoneNumberCache;
+import cc.coopersoft.keycloak.phone.providers.constants.DispatchMode;
+import cc.coopersoft.keycloak.phone.providers.dispatch.MessageDispatcher;
+import cc.coopersoft.keycloak.phone.providers.dispatch.MessageOutbox;
+import cc.coopersoft.keycloak.phone.providers.dispatch.SenderCircuitBreakers;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneProviderFactory;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
 import org.keycloak.Config.Scope;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.PostMigrationEvent;
+
+import java.util.concurrent.TimeUnit;
 
 public class DefaultPhoneProviderFactory implements PhoneProviderFactory {
 
     private Scope config;
 
+    private MessageDispatcher dispatcher;
+
+    private MessageOutbox outbox;
+
+    private PhoneNumberCache numberCache;
+
+    private PhonePolicies policies;
+
+    private SenderCircuitBreakers breakers;
+
+    private PhoneProviderSettings settings;
+
     @Override
     public PhoneProvider create(KeycloakSession session) {
-        return new DefaultPhoneProvider(session, config);
+        return new DefaultPhoneProvider(session, config, settings, dispatcher, outbox, policies, breakers);
     }
 
     @Override
     public void init(Scope config) {
         this.config = config;
+        this.policies = new PhonePolicies(config);
+        long sendTimeout = config.getLong("dispatchSendTimeout", 60L);
+        // opt-in, the senders guard their own channels; a send is only slow once it nears the send timeout
+        if (config.getBoolean("breakerEnabled", false)) {
+            this.breakers = new SenderCircuitBreakers(CircuitBreaker.Settings.of(config, sendTimeout));
+        }
+        DispatchMode dispatchMode = DispatchMode.of(config.get("dispatchMode"));
+        if (dispatchMode != DispatchMode.SYNC) {
+            this.dispatcher = new MessageDispatcher(
+                    config.getInt("dispatchThreads", 8),
+                    config.getInt("dispatchQueueCapacity", 256),
+                    config.getLong("dispatchRetryAfter", 5L),
+                    config.getLong("dispatchShutdownTimeout", 30L),
+                    sendTimeout,
+                    breakers);
+        }
+        if (dispatchMode == DispatchMode.OUTBOX) {
+            this.outbox = new MessageOutbox(dispatcher,
+                    config.getLong("outboxPollInterval", 1000L),
+                    config.getInt("outboxBatchSize", 50),
+                    TimeUnit.SECONDS.toMillis(config.getLong("outboxLease", sendTimeout * 2)),
+                    config.getInt("outboxMaxAttempts", 5),
+                    TimeUnit.SECONDS.toMillis(config.getLong("outboxRetryDelay", 5L)));
+        }
+        if (config.getBoolean("numberCacheEnabled", true)) {
+            this.numberCache = new PhoneNumberCache(config.getInt("numberCacheSize", 10000),
+                    TimeUnit.SECONDS.toMillis(config.getLong("numberCacheTtl", 3600L)));
+        }
+    }
+
+    /**
+     * @return the libphonenumber result cache shared by the sessions, or null when disabled
+     */
+    public PhoneNumberCache getNumberCache() {
+        return numberCache;
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        this.settings = PhoneProviderSettings.load(config, keycloakSessionFactory);
+        if (statelessCodesEnabled()
+                && keycloakSessionFactory.getProviderFactory(PhoneRateLimiterProvider.class) instanceof DatabaseRateLimiterProviderFactory) {
+            // the database limiter counts stored token codes, stateless codes store none
+            throw new IllegalStateException("stateless-codes needs the cluster or memory rate limiter, the database one would never "
+                    + "see a send. Set KC_SPI_PHONE_RATE_LIMITER_PROVIDER=cluster");
+        }
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent removed) {
+                policies.remove(removed.getRealm().getId());
+            }
+        });
+        if (dispatcher != null) {
+            dispatcher.setSessionFactory(keycloakSessionFactory);
+        }
+        if (outbox != null) {
+            keycloakSessionFactory.register(event -> {
+                if (event instanceof PostMigrationEvent) {
+                    outbox.start(keycloakSessionFactory);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if stateless codes are enabled globally or for any realm
+     */
+    private boolean statelessCodesEnabled() {
+        return config.getPropertyNames().stream()
+                .filter(name -> name.equals("stateless-codes") || name.endsWith("-stateless-codes"))
+                .anyMatch(name -> config.getBoolean(name, false));
     }
 
     @Override
     public void close() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
     }
 
     @Override
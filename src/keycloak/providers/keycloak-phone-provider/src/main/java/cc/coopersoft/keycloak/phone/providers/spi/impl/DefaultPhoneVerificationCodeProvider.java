@@ -3,12 +3,18 @@ package cc.coopersoft.keycloak.phone.providers.spi.impl;
 import cc.coopersoft.keycloak.phone.Utils;
 import cc.coopersoft.keycloak.phone.authentication.requiredactions.ConfigSmsOtpRequiredAction;
 import cc.coopersoft.keycloak.phone.authentication.requiredactions.UpdatePhoneNumberRequiredAction;
+import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialDecoder;
 import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialModel;
 import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialProvider;
 import cc.coopersoft.keycloak.phone.credential.PhoneOtpCredentialProviderFactory;
 import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneNumberConflictResolver;
+import cc.coopersoft.keycloak.phone.providers.jpa.PhoneUserIndexStore;
 import cc.coopersoft.keycloak.phone.providers.jpa.TokenCode;
+import cc.coopersoft.keycloak.phone.providers.representations.SendPreflightRepresentation;
 import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
@@ -23,17 +29,18 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.services.validation.Validation;
-import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCodeProvider {
 
     private static final Logger logger = Logger.getLogger(DefaultPhoneVerificationCodeProvider.class);
-    private final KeycloakSession session;
+    protected final KeycloakSession session;
 
     DefaultPhoneVerificationCodeProvider(KeycloakSession session) {
         this.session = session;
@@ -42,11 +49,11 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         }
     }
 
-    private EntityManager getEntityManager() {
+    protected EntityManager getEntityManager() {
         return session.getProvider(JpaConnectionProvider.class).getEntityManager();
     }
 
-    private RealmModel getRealm() {
+    protected RealmModel getRealm() {
         return session.getContext().getRealm();
     }
 
@@ -62,59 +69,94 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
                     .setParameter("type", tokenCodeType.name())
                     .getSingleResult();
 
-            TokenCodeRepresentation tokenCodeRepresentation = new TokenCodeRepresentation();
-
-            tokenCodeRepresentation.setId(entity.getId());
-            tokenCodeRepresentation.setPhoneNumber(entity.getPhoneNumber());
-            tokenCodeRepresentation.setCode(entity.getCode());
-            tokenCodeRepresentation.setType(entity.getType());
-            tokenCodeRepresentation.setCreatedAt(entity.getCreatedAt());
-            tokenCodeRepresentation.setExpiresAt(entity.getExpiresAt());
-            tokenCodeRepresentation.setConfirmed(entity.getConfirmed());
-
-            return tokenCodeRepresentation;
+            return toRepresentation(entity);
         } catch (NoResultException e) {
             return null;
         }
     }
 
+    private static TokenCodeRepresentation toRepresentation(TokenCode entity) {
+        TokenCodeRepresentation tokenCodeRepresentation = new TokenCodeRepresentation();
+
+        tokenCodeRepresentation.setId(entity.getId());
+        tokenCodeRepresentation.setPhoneNumber(entity.getPhoneNumber());
+        tokenCodeRepresentation.setCode(entity.getCode());
+        tokenCodeRepresentation.setType(entity.getType());
+        tokenCodeRepresentation.setCreatedAt(entity.getCreatedAt());
+        tokenCodeRepresentation.setExpiresAt(entity.getExpiresAt());
+        tokenCodeRepresentation.setConfirmed(entity.getConfirmed());
+
+        return tokenCodeRepresentation;
+    }
+
     @Override
     public boolean isAbusing(String phoneNumber, TokenCodeType tokenCodeType,
             String sourceAddr, int sourceHourMaximum, int targetHourMaximum) {
 
-        Date oneHourAgo = new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        PhoneRateLimiterProvider rateLimiter = session.getProvider(PhoneRateLimiterProvider.class);
 
-        if (targetHourMaximum > 0) {
-            long targetCount = (getEntityManager()
-                    .createNamedQuery("processesSinceTarget", Long.class)
-                    .setParameter("realmId", getRealm().getId())
-                    .setParameter("phoneNumber", phoneNumber)
-                    .setParameter("date", oneHourAgo, TemporalType.TIMESTAMP)
-                    .setParameter("type", tokenCodeType.name())
-                    .getSingleResult());
-            if (targetCount > targetHourMaximum) {
-                throw new ForbiddenException(String.format("You have sent your maximum (%d) OTPs to this number, please wait one hour before trying again.", targetHourMaximum));
-            }
+        if (targetHourMaximum > 0 && rateLimiter.isTargetExceeded(phoneNumber, tokenCodeType, targetHourMaximum)) {
+            throw targetExceeded(targetHourMaximum);
         }
 
-        if (sourceHourMaximum > 0) {
-            long sourceCount = (getEntityManager()
-                    .createNamedQuery("processesSinceSource", Long.class)
-                    .setParameter("realmId", getRealm().getId())
-                    .setParameter("addr", sourceAddr)
-                    .setParameter("date", oneHourAgo, TemporalType.TIMESTAMP)
-                    .setParameter("type", tokenCodeType.name())
-                    .getSingleResult());
-            if (sourceCount > sourceHourMaximum) {
-                throw new ForbiddenException(String.format("This device has sent it's maximum (%d) OTPs, please wait an hour before trying again.", sourceHourMaximum));
-            }
+        if (sourceHourMaximum > 0 && rateLimiter.isSourceExceeded(sourceAddr, tokenCodeType, sourceHourMaximum)) {
+            throw sourceExceeded(sourceHourMaximum);
         }
 
         return false;
     }
 
+    private static ForbiddenException targetExceeded(int targetHourMaximum) {
+        return new ForbiddenException(String.format("You have sent your maximum (%d) OTPs to this number, please wait one hour before trying again.", targetHourMaximum));
+    }
+
+    private static ForbiddenException sourceExceeded(int sourceHourMaximum) {
+        return new ForbiddenException(String.format("This device has sent it's maximum (%d) OTPs, please wait an hour before trying again.", sourceHourMaximum));
+    }
+
+    @Override
+    public SendPreflightRepresentation preflight(String phoneNumber, TokenCodeType tokenCodeType, String sourceAddr,
+                                                 int sourceHourMaximum, int targetHourMaximum) {
+
+        if (!(session.getProvider(PhoneRateLimiterProvider.class) instanceof DatabaseRateLimiterProvider)) {
+            // counted by the memory or cluster limiter, only the ongoing process is read from the database
+            return PhoneVerificationCodeProvider.super.preflight(phoneNumber, tokenCodeType, sourceAddr, sourceHourMaximum, targetHourMaximum);
+        }
+
+        // both counts of the last hour in one aggregate, plus the single-row lookup of the live code
+        Object[] counts = getEntityManager()
+                .createNamedQuery("sendPreflight", Object[].class)
+                .setParameter("realmId", getRealm().getId())
+                .setParameter("type", tokenCodeType.name())
+                .setParameter("phoneNumber", phoneNumber)
+                .setParameter("addr", sourceAddr)
+                .setParameter("date", new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)), TemporalType.TIMESTAMP)
+                .getSingleResult();
+        long targetCount = counts[0] == null ? 0 : ((Number) counts[0]).longValue();
+        long sourceCount = counts[1] == null ? 0 : ((Number) counts[1]).longValue();
+
+        if (targetHourMaximum > 0 && targetCount > targetHourMaximum) {
+            throw targetExceeded(targetHourMaximum);
+        }
+        if (sourceHourMaximum > 0 && sourceCount > sourceHourMaximum) {
+            throw sourceExceeded(sourceHourMaximum);
+        }
+
+        return new SendPreflightRepresentation(targetCount, sourceCount, ongoingProcess(phoneNumber, tokenCodeType));
+    }
+
     @Override
     public void persistCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn) {
+        TokenCode entity = newEntity(tokenCode, tokenCodeType, tokenExpiresIn);
+        getEntityManager().persist(entity);
+        recordSent(entity, tokenCodeType);
+    }
+
+    protected void recordSent(TokenCode entity, TokenCodeType tokenCodeType) {
+        session.getProvider(PhoneRateLimiterProvider.class).sent(entity.getPhoneNumber(), entity.getIp(), tokenCodeType);
+    }
+
+    protected TokenCode newEntity(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn) {
 
         TokenCode entity = new TokenCode();
         Instant now = Instant.now();
@@ -133,7 +175,17 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
             entity.setHost(session.getContext().getConnection().getRemoteHost());
         }
 
-        getEntityManager().persist(entity);
+        return entity;
+    }
+
+    @Override
+    public void cancelProcess(String phoneNumber, TokenCodeType tokenCodeType, String tokenCodeId) {
+        TokenCode entity = getEntityManager().find(TokenCode.class, tokenCodeId);
+        if (entity != null && !Boolean.TRUE.equals(entity.getConfirmed())) {
+            entity.setExpiresAt(new Date());
+            getEntityManager().persist(entity);
+            TokenCodeSendClaims.release(session, phoneNumber, tokenCodeType);
+        }
     }
 
     @Override
@@ -147,19 +199,7 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         logger.info(String.format("valid %s , phone: %s, code: %s", tokenCodeType, phoneNumber, code));
 
         // Check if this is a test phone number with hardcoded code
-        String testPhoneNumbersEnv = System.getenv("TEST_PHONE_NUMBERS");
-        boolean isTestPhoneNumber = false;
-
-        if (testPhoneNumbersEnv != null && !testPhoneNumbersEnv.trim().isEmpty()) {
-            // Split by comma and check if the phone number is in the list
-            String[] testNumbers = testPhoneNumbersEnv.split("\\s*,\\s*");
-            for (String testNumber : testNumbers) {
-                if (phoneNumber.equals(testNumber.trim())) {
-                    isTestPhoneNumber = true;
-                    break;
-                }
-            }
-        }
+        boolean isTestPhoneNumber = session.getProvider(PhoneProvider.class).isTestPhoneNumber(phoneNumber);
 
         if (isTestPhoneNumber && "1234".equals(code)) {
             logger.info(String.format("Test phone number %s validated with hardcoded OTP code", phoneNumber));
@@ -183,13 +223,19 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         }
 
         // For non-test phone numbers or non-test codes, proceed with normal validation
-        TokenCodeRepresentation tokenCode = ongoingProcess(phoneNumber, tokenCodeType);
-        if (tokenCode == null) {
-            throw new BadRequestException(String.format("There is no valid ongoing %s process", tokenCodeType.label));
-        }
+        PhoneProvider phoneProvider = session.getProvider(PhoneProvider.class);
+        TokenCodeRepresentation tokenCode;
+        if (phoneProvider.statelessCodes()) {
+            tokenCode = validateStatelessCode(phoneNumber, code, tokenCodeType, phoneProvider.tokenExpiresIn());
+        } else {
+            tokenCode = ongoingProcess(phoneNumber, tokenCodeType);
+            if (tokenCode == null) {
+                throw new BadRequestException(String.format("There is no valid ongoing %s process", tokenCodeType.label));
+            }
 
-        if (!tokenCode.getCode().equals(code)) {
-            throw new ForbiddenException("Code does not match with expected value");
+            if (!tokenCode.getCode().equals(code)) {
+                throw new ForbiddenException("Code does not match with expected value");
+            }
         }
 
         logger.info(String.format("User %s correctly answered the %s code", user.getId(), tokenCodeType.label));
@@ -210,12 +256,37 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
         }
     }
 
+    /**
+     * Verifies a code derived from the realm HMAC key, nothing was stored when it was sent. The confirmation
+     * is recorded as the token code row.
+     */
+    private TokenCodeRepresentation validateStatelessCode(String phoneNumber, String code, TokenCodeType tokenCodeType, int step) {
+        long window = HmacTokenCodes.verify(session, phoneNumber, tokenCodeType, code, step);
+        if (window < 0) {
+            throw new ForbiddenException("Code does not match with expected value");
+        }
+
+        // a code can only be used once, across the cluster
+        String usedKey = String.format("phone-token-code-used::%s::%s::%s::%d", getRealm().getId(), tokenCodeType.name(), phoneNumber, window);
+        if (!session.singleUseObjects().putIfAbsent(usedKey, 2L * step)) {
+            throw new BadRequestException(String.format("There is no valid ongoing %s process", tokenCodeType.label));
+        }
+
+        TokenCodeRepresentation tokenCode = TokenCodeRepresentation.forPhoneNumber(phoneNumber, code);
+        persistConfirmation(newEntity(tokenCode, tokenCodeType, step));
+        return tokenCode;
+    }
+
+    protected void persistConfirmation(TokenCode entity) {
+        getEntityManager().persist(entity);
+    }
+
     @Override
     public void tokenValidated(UserModel user, String phoneNumber, String tokenCodeId, boolean isOTP) {
 
         boolean updateUserPhoneNumber = !isOTP;
         if (isOTP) {
-            updateUserPhoneNumber = PhoneOtpCredentialModel.getSmsOtpCredentialData(user)
+            updateUserPhoneNumber = PhoneOtpCredentialModel.getSmsOtpCredentialData(session, user)
                     .map(PhoneOtpCredentialModel.SmsOtpCredentialData::getPhoneNumber)
                     .map(pn -> pn.equals(phoneNumber))
                     .orElse(false);
@@ -226,53 +297,71 @@ public class DefaultPhoneVerificationCodeProvider implements PhoneVerificationCo
 
             // Set phoneNumberVerified to true for the current user
             user.setSingleAttribute("phoneNumberVerified", "true");
+            List<String> changedUserIds = new ArrayList<>();
+            changedUserIds.add(user.getId());
 
-            session.users()
-                    .searchForUserByUserAttributeStream(session.getContext().getRealm(), "phoneNumber", phoneNumber)
-                    .filter(u -> !u.getId().equals(user.getId()))
-                    .forEach(u -> {
-                        logger.info(String.format("User %s also has phone number %s. Un-verifying.", u.getId(), phoneNumber));
-                        u.setSingleAttribute("phoneNumberVerified", "false");
-
-                        u.addRequiredAction(UpdatePhoneNumberRequiredAction.PROVIDER_ID);
-
-                        //remove otp Credentials
-                        u.credentialManager()
-                                .getStoredCredentialsByTypeStream(PhoneOtpCredentialModel.TYPE)
-                                .filter(c -> {
-                                    try {
-                                        PhoneOtpCredentialModel.SmsOtpCredentialData credentialData
-                                                = JsonSerialization.readValue(c.getCredentialData(), PhoneOtpCredentialModel.SmsOtpCredentialData.class);
-                                        if (Validation.isBlank(credentialData.getPhoneNumber())) {
-                                            return true;
-                                        }
-                                        return credentialData.getPhoneNumber().equals(user.getFirstAttribute("phoneNumber"));
-                                    } catch (IOException e) {
-                                        logger.warn("Unknown format Otp Credential", e);
-                                        return true;
-                                    }
-                                })
-                                .map(CredentialModel::getId)
-                                .toList()
-                                .forEach(id -> u.credentialManager().removeStoredCredentialById(id));
-                    });
+            if (PhoneNumberConflictResolver.supports(getRealm())) {
+                changedUserIds.addAll(new PhoneNumberConflictResolver(session)
+                        .unverifyOthers(getRealm(), phoneNumber, user.getId(), user.getFirstAttribute("phoneNumber")));
+            } else {
+                unverifyOthers(user, phoneNumber, changedUserIds);
+            }
 
             user.setSingleAttribute("phoneNumberVerified", "true");
             user.setSingleAttribute("phoneNumber", phoneNumber);
 
             user.removeRequiredAction(UpdatePhoneNumberRequiredAction.PROVIDER_ID);
+            PhoneUserIndexStore.syncAfterCommit(session, getRealm().getId(), changedUserIds);
         }
 
         validateProcess(tokenCodeId, user);
 
     }
 
+    /**
+     * Un-verifies the other users with the number one by one, through the user adapters, so that federated
+     * users are updated by their storage provider.
+     */
+    private void unverifyOthers(UserModel user, String phoneNumber, List<String> changedUserIds) {
+        PhoneOtpCredentialDecoder decoder = PhoneOtpCredentialDecoder.of(session);
+        session.users()
+                .searchForUserByUserAttributeStream(session.getContext().getRealm(), "phoneNumber", phoneNumber)
+                .filter(u -> !u.getId().equals(user.getId()))
+                .forEach(u -> {
+                    logger.info(String.format("User %s also has phone number %s. Un-verifying.", u.getId(), phoneNumber));
+                    u.setSingleAttribute("phoneNumberVerified", "false");
+                    changedUserIds.add(u.getId());
+
+                    u.addRequiredAction(UpdatePhoneNumberRequiredAction.PROVIDER_ID);
+
+                    //remove otp Credentials
+                    u.credentialManager()
+                            .getStoredCredentialsByTypeStream(PhoneOtpCredentialModel.TYPE)
+                            .filter(c -> {
+                                try {
+                                    PhoneOtpCredentialModel.SmsOtpCredentialData credentialData = decoder.credentialData(c);
+                                    if (credentialData == null || Validation.isBlank(credentialData.getPhoneNumber())) {
+                                        return true;
+                                    }
+                                    return credentialData.getPhoneNumber().equals(user.getFirstAttribute("phoneNumber"));
+                                } catch (IOException e) {
+                                    logger.warn("Unknown format Otp Credential", e);
+                                    return true;
+                                }
+                            })
+                            .map(CredentialModel::getId)
+                            .toList()
+                            .forEach(id -> u.credentialManager().removeStoredCredentialById(id));
+                });
+    }
+
     @Override
     public void validateProcess(String tokenCodeId, UserModel user) {
         TokenCode entity = getEntityManager().find(TokenCode.class, tokenCodeId);
         entity.setConfirmed(true);
         entity.setByWhom(user.getId());
         getEntityManager().persist(entity);
+        TokenCodeSendClaims.release(session, entity.getPhoneNumber(), TokenCodeType.valueOf(entity.getType()));
     }
 
     private void updateUserOTPCredential(UserModel user, String phoneNumber, String code) {
@@ -1,13 +1,26 @@
 package cc.coopersoft.keycloak.phone.providers.spi.impl;
 
+import cc.coopersoft.keycloak.phone.providers.jpa.TokenCodePurgeTask;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
 import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProviderFactory;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.concurrent.TimeUnit;
 
 public class DefaultVerificationCodeProviderFactory implements PhoneVerificationCodeProviderFactory {
 
+    private static final Logger logger = Logger.getLogger(DefaultVerificationCodeProviderFactory.class);
+
+    private TokenCodePurgeTask purgeTask;
+    private long purgeInterval;
+
     @Override
     public PhoneVerificationCodeProvider create(KeycloakSession session) {
         return new DefaultPhoneVerificationCodeProvider(session);
@@ -15,10 +28,36 @@ public class DefaultVerificationCodeProviderFactory implements PhoneVerification
 
     @Override
     public void init(Config.Scope scope) {
+        if (!scope.getBoolean("purgeEnabled", true)) {
+            return;
+        }
+        // the database rate limiter counts the rows of the last hour
+        long retentionHours = Math.max(1L, scope.getLong("purgeRetentionHours", 30L * 24));
+        purgeInterval = TimeUnit.SECONDS.toMillis(scope.getLong("purgeInterval", 3600L));
+        purgeTask = new TokenCodePurgeTask(
+                TimeUnit.HOURS.toMillis(retentionHours),
+                scope.getInt("purgeBatchSize", 1000),
+                scope.getInt("purgeMaxBatches", 100),
+                "archive".equalsIgnoreCase(scope.get("purgeMode", "delete")));
+        logger.info(String.format("Token codes older than %d hours are purged every %d seconds",
+                retentionHours, TimeUnit.MILLISECONDS.toSeconds(purgeInterval)));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        if (purgeTask == null) {
+            return;
+        }
+        keycloakSessionFactory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+                    // the cluster-aware runner makes sure a single node purges per interval
+                    TimerProvider timer = session.getProvider(TimerProvider.class);
+                    timer.schedule(new ClusterAwareScheduledTaskRunner(keycloakSessionFactory, purgeTask, purgeInterval),
+                            purgeInterval, TokenCodePurgeTask.TASK_NAME);
+                });
+            }
+        });
     }
 
     @Override
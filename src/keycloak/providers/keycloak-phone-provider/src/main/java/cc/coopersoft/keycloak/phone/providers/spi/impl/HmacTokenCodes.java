@@ -0,0 +1,68 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+
+/**
+ * Stateless token codes, derived like TOTP from the realm's active HMAC key over (realm, type, phone number,
+ * time window). A code is accepted in the window it was issued in and the next one, so it stays valid for
+ * at least one window length.
+ */
+final class HmacTokenCodes {
+
+    private HmacTokenCodes() {
+    }
+
+    static long window(int step) {
+        return System.currentTimeMillis() / 1000 / step;
+    }
+
+    static String derive(KeycloakSession session, String phoneNumber, TokenCodeType tokenCodeType, long window) {
+        RealmModel realm = session.getContext().getRealm();
+        KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.HS512);
+        if (key == null || key.getSecretKey() == null) {
+            throw new IllegalStateException("Realm " + realm.getName() + " has no active HS512 key for stateless token codes");
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key.getSecretKey());
+            byte[] hash = mac.doFinal(String.join("\n", realm.getId(), tokenCodeType.name(), phoneNumber,
+                    Long.toString(window)).getBytes(StandardCharsets.UTF_8));
+
+            // RFC 4226 dynamic truncation
+            int offset = hash[hash.length - 1] & 0xf;
+            int binary = ((hash[offset] & 0x7f) << 24)
+                    | ((hash[offset + 1] & 0xff) << 16)
+                    | ((hash[offset + 2] & 0xff) << 8)
+                    | (hash[offset + 3] & 0xff);
+            return String.format("%06d", binary % 1_000_000);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to derive token code", e);
+        }
+    }
+
+    /**
+     * @return the window the code was issued in, or -1 if it does not match
+     */
+    static long verify(KeycloakSession session, String phoneNumber, TokenCodeType tokenCodeType, String code, int step) {
+        long current = window(step);
+        for (long window = current; window >= current - 1; window--) {
+            if (MessageDigest.isEqual(derive(session, phoneNumber, tokenCodeType, window).getBytes(StandardCharsets.UTF_8),
+                    code.getBytes(StandardCharsets.UTF_8))) {
+                return window;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.jpa.TokenCode;
+import cc.coopersoft.keycloak.phone.providers.representations.SendPreflightRepresentation;
+import cc.coopersoft.keycloak.phone.providers.representations.TokenCodeRepresentation;
+
+/**
+ * Keeps live token codes in Keycloak's distributed single-use object cache (Infinispan), with a lifespan
+ * equal to the token expiry, so that looking up and validating an ongoing process does not hit the database.
+ * PHONE_MESSAGE_TOKEN_CODE is still written, asynchronously after commit, as the audit trail.
+ * <p>
+ * The cache is not transactional, so codes and confirmations are only written once the request commits:
+ * a request that rolls back leaves no code behind. A confirmation is a separate single-use entry next to
+ * the code, added with putIfAbsent, so the code entry itself is never rewritten.
+ */
+public class InfinispanPhoneVerificationCodeProvider extends DefaultPhoneVerificationCodeProvider {
+
+    private static final String PROCESS_PREFIX = "phone-token-code::";
+    private static final String ID_PREFIX = "phone-token-code-id::";
+    private static final String CONFIRMED_PREFIX = "phone-token-code-confirmed::";
+
+    private static final String ID = "id";
+    private static final String KEY = "key";
+    private static final String PHONE_NUMBER = "phoneNumber";
+    private static final String CODE = "code";
+    private static final String TYPE = "type";
+    private static final String CREATED_AT = "createdAt";
+    private static final String EXPIRES_AT = "expiresAt";
+    private static final String CONFIRMED = "confirmed";
+
+    private final TokenCodeAuditSink auditSink;
+
+    InfinispanPhoneVerificationCodeProvider(KeycloakSession session, TokenCodeAuditSink auditSink) {
+        super(session);
+        this.auditSink = auditSink;
+    }
+
+    private SingleUseObjectProvider getCache() {
+        return session.singleUseObjects();
+    }
+
+    private String processKey(String phoneNumber, TokenCodeType tokenCodeType) {
+        return PROCESS_PREFIX + getRealm().getId() + "::" + tokenCodeType.name() + "::" + phoneNumber;
+    }
+
+    @Override
+    public TokenCodeRepresentation ongoingProcess(String phoneNumber, TokenCodeType tokenCodeType) {
+        Map<String, String> notes = getCache().get(processKey(phoneNumber, tokenCodeType));
+        if (notes == null) {
+            return null;
+        }
+        Date expiresAt = new Date(Long.parseLong(notes.get(EXPIRES_AT)));
+        if (expiresAt.before(new Date())) {
+            return null;
+        }
+        return new TokenCodeRepresentation(notes.get(ID), notes.get(PHONE_NUMBER), notes.get(CODE), notes.get(TYPE),
+                new Date(Long.parseLong(notes.get(CREATED_AT))), expiresAt, isConfirmed(notes));
+    }
+
+    private boolean isConfirmed(Map<String, String> notes) {
+        return Boolean.parseBoolean(notes.get(CONFIRMED)) || getCache().contains(CONFIRMED_PREFIX + notes.get(ID));
+    }
+
+    private void afterCommit(Runnable action) {
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                action.run();
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    @Override
+    public SendPreflightRepresentation preflight(String phoneNumber, TokenCodeType tokenCodeType, String sourceAddr,
+                                                 int sourceHourMaximum, int targetHourMaximum) {
+        // the live code is in the cache, the audit rows may lag behind
+        isAbusing(phoneNumber, tokenCodeType, sourceAddr, sourceHourMaximum, targetHourMaximum);
+        return new SendPreflightRepresentation(null, null, ongoingProcess(phoneNumber, tokenCodeType));
+    }
+
+    @Override
+    public void persistCode(TokenCodeRepresentation tokenCode, TokenCodeType tokenCodeType, int tokenExpiresIn) {
+        TokenCode entity = newEntity(tokenCode, tokenCodeType, tokenExpiresIn);
+        String key = processKey(tokenCode.getPhoneNumber(), tokenCodeType);
+
+        Map<String, String> notes = new HashMap<>();
+        notes.put(ID, entity.getId());
+        notes.put(PHONE_NUMBER, entity.getPhoneNumber());
+        notes.put(CODE, entity.getCode());
+        notes.put(TYPE, entity.getType());
+        notes.put(CREATED_AT, String.valueOf(entity.getCreatedAt().getTime()));
+        notes.put(EXPIRES_AT, String.valueOf(entity.getExpiresAt().getTime()));
+        notes.put(CONFIRMED, String.valueOf(Boolean.TRUE.equals(entity.getConfirmed())));
+
+        SingleUseObjectProvider cache = getCache();
+        afterCommit(() -> {
+            cache.put(key, tokenExpiresIn, notes);
+            cache.put(ID_PREFIX + entity.getId(), tokenExpiresIn, Map.of(KEY, key));
+        });
+
+        auditSink.insertAfterCommit(session, entity);
+        recordSent(entity, tokenCodeType);
+    }
+
+    @Override
+    protected void persistConfirmation(TokenCode entity) {
+        auditSink.insertAfterCommit(session, entity);
+    }
+
+    @Override
+    public void cancelProcess(String phoneNumber, TokenCodeType tokenCodeType, String tokenCodeId) {
+        String key = processKey(phoneNumber, tokenCodeType);
+        Map<String, String> notes = getCache().get(key);
+        if (notes != null && tokenCodeId.equals(notes.get(ID)) && !isConfirmed(notes)) {
+            getCache().remove(key);
+            getCache().remove(ID_PREFIX + tokenCodeId);
+            TokenCodeSendClaims.release(session, phoneNumber, tokenCodeType);
+        }
+        Date now = new Date();
+        auditSink.updateAfterCommit(session, tokenCodeId, entity -> {
+            if (!Boolean.TRUE.equals(entity.getConfirmed())) {
+                entity.setExpiresAt(now);
+            }
+        });
+    }
+
+    @Override
+    public void validateProcess(String tokenCodeId, UserModel user) {
+        Map<String, String> index = getCache().get(ID_PREFIX + tokenCodeId);
+        if (index != null) {
+            String key = index.get(KEY);
+            Map<String, String> notes = getCache().get(key);
+            if (notes != null && tokenCodeId.equals(notes.get(ID))) {
+                // a confirmed code stays the ongoing process until it expires, as with the JPA provider
+                long lifespan = (Long.parseLong(notes.get(EXPIRES_AT)) - System.currentTimeMillis()) / 1000;
+                if (lifespan > 0) {
+                    SingleUseObjectProvider cache = getCache();
+                    afterCommit(() -> cache.putIfAbsent(CONFIRMED_PREFIX + tokenCodeId, lifespan));
+                }
+                TokenCodeSendClaims.release(session, notes.get(PHONE_NUMBER), TokenCodeType.valueOf(notes.get(TYPE)));
+            }
+        }
+        String userId = user.getId();
+        auditSink.updateAfterCommit(session, tokenCodeId, entity -> {
+            entity.setConfirmed(true);
+            entity.setByWhom(userId);
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneVerificationCodeProviderFactory;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Selected with {@code --spi-phone-verification-code-provider=infinispan}.
+ */
+public class InfinispanVerificationCodeProviderFactory implements PhoneVerificationCodeProviderFactory {
+
+    private TokenCodeAuditSink auditSink;
+
+    @Override
+    public PhoneVerificationCodeProvider create(KeycloakSession session) {
+        return new InfinispanPhoneVerificationCodeProvider(session, auditSink);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        auditSink = new TokenCodeAuditSink(
+                scope.getInt("auditQueueCapacity", 10000),
+                scope.getLong("auditShutdownTimeout", 30L));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        auditSink.setSessionFactory(keycloakSessionFactory);
+    }
+
+    @Override
+    public void close() {
+        if (auditSink != null) {
+            auditSink.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return "infinispan";
+    }
+}
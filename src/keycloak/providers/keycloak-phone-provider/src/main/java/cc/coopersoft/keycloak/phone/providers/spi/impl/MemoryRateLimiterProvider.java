@@ -0,0 +1,46 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
+import org.keycloak.models.KeycloakSession;
+
+public class MemoryRateLimiterProvider implements PhoneRateLimiterProvider {
+
+    private final KeycloakSession session;
+    private final SlidingWindowCounters counters;
+
+    MemoryRateLimiterProvider(KeycloakSession session, SlidingWindowCounters counters) {
+        this.session = session;
+        this.counters = counters;
+    }
+
+    static String targetKey(KeycloakSession session, String phoneNumber, TokenCodeType tokenCodeType) {
+        return session.getContext().getRealm().getId() + "::" + tokenCodeType.name() + "::target::" + phoneNumber;
+    }
+
+    static String sourceKey(KeycloakSession session, String sourceAddr, TokenCodeType tokenCodeType) {
+        return session.getContext().getRealm().getId() + "::" + tokenCodeType.name() + "::source::" + sourceAddr;
+    }
+
+    @Override
+    public boolean isTargetExceeded(String phoneNumber, TokenCodeType tokenCodeType, int maximum) {
+        return counters.count(targetKey(session, phoneNumber, tokenCodeType)) > maximum;
+    }
+
+    @Override
+    public boolean isSourceExceeded(String sourceAddr, TokenCodeType tokenCodeType, int maximum) {
+        return sourceAddr != null && counters.count(sourceKey(session, sourceAddr, tokenCodeType)) > maximum;
+    }
+
+    @Override
+    public void sent(String phoneNumber, String sourceAddr, TokenCodeType tokenCodeType) {
+        counters.record(targetKey(session, phoneNumber, tokenCodeType));
+        if (sourceAddr != null) {
+            counters.record(sourceKey(session, sourceAddr, tokenCodeType));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
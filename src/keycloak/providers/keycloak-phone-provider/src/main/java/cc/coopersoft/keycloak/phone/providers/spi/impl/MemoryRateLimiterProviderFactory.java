@@ -0,0 +1,42 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProvider;
+import cc.coopersoft.keycloak.phone.providers.spi.PhoneRateLimiterProviderFactory;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Counts sends in the memory of each node, opt-in with {@code --spi-phone-rate-limiter-provider=memory}.
+ * The counts are lost on restart and every node enforces the limits only on the requests it serves, so an
+ * N-node cluster allows N times the configured maximums; use {@code cluster} for cluster-wide limits.
+ */
+public class MemoryRateLimiterProviderFactory implements PhoneRateLimiterProviderFactory {
+
+    private SlidingWindowCounters counters;
+
+    @Override
+    public PhoneRateLimiterProvider create(KeycloakSession session) {
+        return new MemoryRateLimiterProvider(session, counters);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        counters = new SlidingWindowCounters(TimeUnit.HOURS.toMillis(1), scope.getInt("maxEvents", 1000));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return "memory";
+    }
+}
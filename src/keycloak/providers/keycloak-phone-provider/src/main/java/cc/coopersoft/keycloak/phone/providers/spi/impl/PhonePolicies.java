@@ -0,0 +1,89 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config.Scope;
+import org.keycloak.models.RealmModel;
+
+import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
+
+import cc.coopersoft.keycloak.phone.Utils;
+import cc.coopersoft.keycloak.phone.providers.spi.PhonePolicy;
+
+/**
+ * Compiled {@link PhonePolicy} per realm. The config is fixed at startup, so a policy only depends on the
+ * realm name (the prefix of realm overrides) and default locale (the fallback region); it is rebuilt when
+ * either changed, on whichever node notices first.
+ */
+class PhonePolicies {
+
+    private static final Logger logger = Logger.getLogger(PhonePolicies.class);
+
+    // matches nothing, numbers are rejected rather than accepted when the configured regex is broken
+    private static final Pattern REJECT_ALL = Pattern.compile("(?!)");
+
+    private record Compiled(String realmName, String defaultLocale, PhonePolicy policy) {
+    }
+
+    private final Scope config;
+    private final Map<String, Compiled> policies = new ConcurrentHashMap<>();
+
+    PhonePolicies(Scope config) {
+        this.config = config;
+    }
+
+    PhonePolicy get(RealmModel realm) {
+        Compiled compiled = policies.get(realm.getId());
+        if (compiled == null || !compiled.realmName().equals(realm.getName())
+                || !Objects.equals(compiled.defaultLocale(), realm.getDefaultLocale())) {
+            compiled = new Compiled(realm.getName(), realm.getDefaultLocale(), build(realm));
+            policies.put(realm.getId(), compiled);
+        }
+        return compiled.policy();
+    }
+
+    void remove(String realmId) {
+        policies.remove(realmId);
+    }
+
+    private PhonePolicy build(RealmModel realm) {
+        String realmName = realm.getName();
+
+        String defaultRegion = DefaultPhoneProvider.getStringConfigValue(config, realmName, "phone-default-region")
+                .orElseGet(() -> Utils.localeToCountry(realm.getDefaultLocale()).orElse(null));
+
+        PhoneNumberFormat format = DefaultPhoneProvider.getStringConfigValue(config, realmName, "canonicalize-phone-numbers")
+                .map(name -> {
+                    try {
+                        return PhoneNumberFormat.valueOf(name);
+                    } catch (IllegalArgumentException e) {
+                        logger.warn(String.format("canonicalize format param error! '%s' is not in supported list: %s, E164 Will be used.",
+                                name, Arrays.toString(PhoneNumberFormat.values())));
+                        return PhoneNumberFormat.E164;
+                    }
+                })
+                .orElse(null);
+
+        Pattern regex = DefaultPhoneProvider.getStringConfigValue(config, realmName, "number-regex")
+                .map(expression -> {
+                    try {
+                        return Pattern.compile(expression);
+                    } catch (PatternSyntaxException e) {
+                        logger.error(String.format("Phone number regex '%s' of realm %s does not compile, all numbers are rejected", expression, realmName), e);
+                        return REJECT_ALL;
+                    }
+                })
+                .orElse(null);
+
+        return new PhonePolicy(defaultRegion, format, regex,
+                DefaultPhoneProvider.getBooleanConfigValue(config, realmName, "valid-phone", true),
+                DefaultPhoneProvider.getBooleanConfigValue(config, realmName, "compatible", false),
+                DefaultPhoneProvider.getBooleanConfigValue(config, realmName, "duplicate-phone", false));
+    }
+}
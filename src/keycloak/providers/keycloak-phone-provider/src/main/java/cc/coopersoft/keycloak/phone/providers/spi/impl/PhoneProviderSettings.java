@@ -0,0 +1,62 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.services.validation.Validation;
+
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+
+/**
+ * Realm independent settings of the default phone provider, resolved once by the factory so that creating
+ * a provider per session only copies references.
+ *
+ * @param service          id of the message sender service, null when none is deployed
+ * @param testPhoneNumbers numbers that receive the fixed test code instead of an SMS
+ */
+record PhoneProviderSettings(String service, int tokenExpiresIn, int targetHourMaximum, int sourceHourMaximum,
+                             Set<String> testPhoneNumbers) {
+
+    private static final Logger logger = Logger.getLogger(PhoneProviderSettings.class);
+
+    static PhoneProviderSettings load(Scope config, KeycloakSessionFactory sessionFactory) {
+        List<String> services = sessionFactory.getProviderFactoriesStream(MessageSenderService.class)
+                .map(ProviderFactory::getId)
+                .toList();
+        String service = services.stream().filter(s -> s.equals(config.get("service")))
+                .findFirst().orElse(services.stream().findFirst().orElse(null));
+
+        if (Validation.isBlank(service)) {
+            logger.error("Message sender service provider not found!");
+        }
+
+        if (Validation.isBlank(config.get("service"))) {
+            logger.warn("No message sender service provider specified! Default provider'"
+                    + service + "' will be used. You can use keycloak start param '--spi-phone-default-service' to specify a different one. ");
+        }
+
+        // Read test phone numbers from environment variable
+        // Format: "+27123456789,+27987654321,+1234567890" (comma-separated)
+        Set<String> testPhoneNumbers = Set.of();
+        String testPhoneNumbersEnv = System.getenv("TEST_PHONE_NUMBERS");
+        if (testPhoneNumbersEnv != null && !testPhoneNumbersEnv.trim().isEmpty()) {
+            testPhoneNumbers = Arrays.stream(testPhoneNumbersEnv.split("\\s*,\\s*"))
+                    .map(String::trim)
+                    .filter(number -> !number.isEmpty())
+                    .collect(Collectors.toUnmodifiableSet());
+            logger.info("Test phone numbers configured: " + testPhoneNumbers);
+        }
+
+        return new PhoneProviderSettings(service,
+                config.getInt("tokenExpiresIn", 60),
+                config.getInt("targetHourMaximum", 3),
+                config.getInt("sourceHourMaximum", 10),
+                testPhoneNumbers);
+    }
+}
@@ -0,0 +1,24 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Map;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.spi.TokenCodeGenerator;
+
+public class PooledTokenCodeGenerator implements TokenCodeGenerator {
+
+    private final Map<TokenCodeType, TokenCodePool> pools;
+
+    PooledTokenCodeGenerator(Map<TokenCodeType, TokenCodePool> pools) {
+        this.pools = pools;
+    }
+
+    @Override
+    public String generate(TokenCodeType tokenCodeType) {
+        return pools.get(tokenCodeType).take();
+    }
+
+    @Override
+    public void close() {
+    }
+}
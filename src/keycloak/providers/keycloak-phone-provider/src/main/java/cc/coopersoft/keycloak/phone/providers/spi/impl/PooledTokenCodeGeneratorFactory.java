@@ -0,0 +1,91 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+import cc.coopersoft.keycloak.phone.providers.spi.TokenCodeGenerator;
+import cc.coopersoft.keycloak.phone.providers.spi.TokenCodeGeneratorFactory;
+
+/**
+ * Serves codes from per-type pools filled by one background thread from a shared DRBG, which does not
+ * block on the entropy source once seeded.
+ * <p>
+ * Length and alphabet are set per type, e.g. {@code --spi-phone-token-code-generator-pooled-otp-length=8}
+ * and {@code --spi-phone-token-code-generator-pooled-registration-alphabet=ABCDEFGHJKLMNPQRSTUVWXYZ23456789}.
+ * Stateless codes are derived from the realm key and stay six digits.
+ */
+public class PooledTokenCodeGeneratorFactory implements TokenCodeGeneratorFactory {
+
+    private static final Logger logger = Logger.getLogger(PooledTokenCodeGeneratorFactory.class);
+
+    private static final String DIGITS = "0123456789";
+    private static final int MIN_LENGTH = 4;
+    private static final int MAX_LENGTH = 16;
+
+    private final Map<TokenCodeType, TokenCodePool> pools = new EnumMap<>(TokenCodeType.class);
+    private ExecutorService refiller;
+
+    @Override
+    public TokenCodeGenerator create(KeycloakSession session) {
+        return new PooledTokenCodeGenerator(pools);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        SecureRandom random = drbg();
+        int poolSize = scope.getInt("poolSize", 1024);
+        refiller = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "phone-token-code-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (TokenCodeType type : TokenCodeType.values()) {
+            String name = type.name().toLowerCase();
+            int length = Math.min(MAX_LENGTH, Math.max(MIN_LENGTH, scope.getInt(name + "Length", 6)));
+            String alphabet = scope.get(name + "Alphabet", DIGITS);
+            if (alphabet.chars().distinct().count() != alphabet.length() || alphabet.length() < 2) {
+                logger.warn(String.format("Alphabet '%s' of %s codes needs at least two distinct characters, digits are used", alphabet, name));
+                alphabet = DIGITS;
+            }
+            pools.put(type, new TokenCodePool(name, random, alphabet, length, poolSize, refiller));
+        }
+    }
+
+    private static SecureRandom drbg() {
+        try {
+            return SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("DRBG is not available, falling back to the default SecureRandom", e);
+            return new SecureRandom();
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+    }
+
+    @Override
+    public void close() {
+        if (refiller != null) {
+            refiller.shutdownNow();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return "pooled";
+    }
+}
@@ -0,0 +1,97 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sliding-window event counters held in memory, one timestamp ring per key.
+ * <p>
+ * Writes go through {@link ConcurrentHashMap#compute}, which locks only the bin of the key, so unrelated
+ * numbers and addresses never contend. Idle windows are swept every few thousand events.
+ */
+class SlidingWindowCounters {
+
+    private static final int SWEEP_EVERY = 4096;
+
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicLong events = new AtomicLong();
+    private final long windowMillis;
+    private final int maxEvents;
+
+    /**
+     * @param maxEvents events kept per key, counts saturate at this value
+     */
+    SlidingWindowCounters(long windowMillis, int maxEvents) {
+        this.windowMillis = windowMillis;
+        this.maxEvents = maxEvents;
+    }
+
+    int count(String key) {
+        Window window = windows.get(key);
+        return window == null ? 0 : window.count(System.currentTimeMillis() - windowMillis);
+    }
+
+    void record(String key) {
+        long now = System.currentTimeMillis();
+        windows.compute(key, (k, window) -> {
+            if (window == null) {
+                window = new Window();
+            }
+            window.add(now, now - windowMillis, maxEvents);
+            return window;
+        });
+        if (events.incrementAndGet() % SWEEP_EVERY == 0) {
+            sweep(now - windowMillis);
+        }
+    }
+
+    private void sweep(long since) {
+        windows.keySet().forEach(key -> windows.computeIfPresent(key,
+                (k, window) -> window.count(since) == 0 ? null : window));
+    }
+
+    private static class Window {
+        private long[] timestamps = new long[4];
+        // index of the oldest event and number of events held
+        private int head;
+        private int size;
+
+        synchronized int count(long since) {
+            evict(since);
+            return size;
+        }
+
+        synchronized void add(long now, long since, int maxEvents) {
+            evict(since);
+            if (size == timestamps.length) {
+                if (timestamps.length < maxEvents) {
+                    grow(Math.min(timestamps.length * 2, maxEvents));
+                } else {
+                    // saturated, drop the oldest event
+                    head = (head + 1) % timestamps.length;
+                    size--;
+                }
+            }
+            timestamps[(head + size) % timestamps.length] = now;
+            size++;
+        }
+
+        private void evict(long since) {
+            while (size > 0 && timestamps[head] < since) {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+        }
+
+        private void grow(int capacity) {
+            long[] grown = Arrays.copyOf(timestamps, capacity);
+            // unwrap the ring so the oldest event is at index 0
+            for (int i = 0; i < size; i++) {
+                grown[i] = timestamps[(head + i) % timestamps.length];
+            }
+            timestamps = grown;
+            head = 0;
+        }
+    }
+}
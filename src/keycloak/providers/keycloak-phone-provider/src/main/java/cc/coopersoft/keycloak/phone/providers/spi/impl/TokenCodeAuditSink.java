@@ -0,0 +1,101 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import cc.coopersoft.keycloak.phone.providers.jpa.TokenCode;
+import jakarta.persistence.EntityManager;
+
+/**
+ * Writes token codes to PHONE_MESSAGE_TOKEN_CODE in the background, once the request that produced them
+ * has committed. The table is an audit trail (and the source of the abuse counters), the live codes are
+ * served from the cache.
+ * <p>
+ * A single writer keeps the updates of one token ordered after its insert; when the queue is full the
+ * committing thread writes the row itself rather than dropping it.
+ */
+class TokenCodeAuditSink {
+
+    private static final Logger logger = Logger.getLogger(TokenCodeAuditSink.class);
+
+    private final ThreadPoolExecutor executor;
+    private final long shutdownTimeout;
+
+    private KeycloakSessionFactory sessionFactory;
+
+    TokenCodeAuditSink(int queueCapacity, long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "phone-token-code-audit");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    void insertAfterCommit(KeycloakSession session, TokenCode entity) {
+        afterCommit(session, () -> write(em -> em.persist(entity), entity.getId()));
+    }
+
+    void updateAfterCommit(KeycloakSession session, String tokenCodeId, Consumer<TokenCode> update) {
+        afterCommit(session, () -> write(em -> {
+            TokenCode entity = em.find(TokenCode.class, tokenCodeId);
+            if (entity != null) {
+                update.accept(entity);
+            }
+        }, tokenCodeId));
+    }
+
+    private void afterCommit(KeycloakSession session, Runnable task) {
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                if (executor.isShutdown()) {
+                    logger.warn("Token code audit sink is closed, writing synchronously");
+                    task.run();
+                } else {
+                    executor.execute(task);
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+            }
+        });
+    }
+
+    private void write(Consumer<EntityManager> work, String tokenCodeId) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                    session -> work.accept(session.getProvider(JpaConnectionProvider.class).getEntityManager()));
+        } catch (RuntimeException e) {
+            logger.error(String.format("Failed to write audit record of token code %s", tokenCodeId), e);
+        }
+    }
+
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS)) {
+                int dropped = executor.shutdownNow().size();
+                logger.warn(String.format("Token code audit sink did not drain within %d seconds, %d records dropped", shutdownTimeout, dropped));
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
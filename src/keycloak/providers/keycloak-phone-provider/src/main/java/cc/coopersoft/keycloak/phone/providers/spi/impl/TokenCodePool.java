@@ -0,0 +1,84 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Codes of one token code type, generated ahead of time into a ring and topped up in the background once
+ * it is half empty. Should a burst drain the ring the caller generates its code itself, it never waits.
+ */
+final class TokenCodePool {
+
+    private final SecureRandom random;
+    private final char[] alphabet;
+    private final int length;
+    private final TokenCodeRing ring;
+    private final Executor refiller;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final Counter misses;
+
+    TokenCodePool(String name, SecureRandom random, String alphabet, int length, int capacity, Executor refiller) {
+        this.random = random;
+        this.alphabet = alphabet.toCharArray();
+        this.length = length;
+        this.ring = new TokenCodeRing(capacity);
+        this.refiller = refiller;
+        this.misses = Counter.builder("keycloak.phone.token.code.pool.misses")
+                .description("Token codes generated on the request thread because the pool was empty")
+                .tag("type", name)
+                .register(Metrics.globalRegistry);
+        refill();
+    }
+
+    String take() {
+        String code = ring.poll();
+        if (ring.size() < ring.capacity() / 2) {
+            requestRefill();
+        }
+        if (code == null) {
+            misses.increment();
+            code = generate();
+        }
+        return code;
+    }
+
+    private void requestRefill() {
+        if (refilling.compareAndSet(false, true)) {
+            try {
+                refiller.execute(() -> {
+                    try {
+                        refill();
+                    } finally {
+                        refilling.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down, take() falls back to generating inline
+                refilling.set(false);
+            }
+        }
+    }
+
+    private void refill() {
+        while (ring.size() < ring.capacity() && ring.offer(generate())) {
+            // keep filling
+        }
+    }
+
+    /**
+     * Every character is drawn uniformly from the alphabet; {@link SecureRandom#nextInt(int)} rejects the
+     * biased tail instead of taking a modulo.
+     */
+    private String generate() {
+        char[] code = new char[length];
+        for (int i = 0; i < length; i++) {
+            code[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return new String(code);
+    }
+}
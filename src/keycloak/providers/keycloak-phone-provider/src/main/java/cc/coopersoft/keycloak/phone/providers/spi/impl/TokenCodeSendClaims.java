@@ -0,0 +1,51 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import cc.coopersoft.keycloak.phone.providers.constants.TokenCodeType;
+
+/**
+ * Cluster-wide claims on sending a token code, taken with putIfAbsent in the single-use object cache and
+ * held for the lifetime of the code. Concurrent requests for the same number that all passed the ongoing
+ * process check race on the claim, only the winner sends. A claim is given back when its request rolls
+ * back, its send fails or its process is cancelled, so that the user can ask for a new code right away.
+ */
+final class TokenCodeSendClaims {
+
+    private static final String PREFIX = "phone-token-code-claim::";
+
+    private TokenCodeSendClaims() {
+    }
+
+    private static String key(KeycloakSession session, String phoneNumber, TokenCodeType tokenCodeType) {
+        return PREFIX + session.getContext().getRealm().getId() + "::" + tokenCodeType.name() + "::" + phoneNumber;
+    }
+
+    /**
+     * @return false if another request holds the claim
+     */
+    static boolean claim(KeycloakSession session, String phoneNumber, TokenCodeType tokenCodeType, int lifespan) {
+        String key = key(session, phoneNumber, tokenCodeType);
+        SingleUseObjectProvider singleUseObjects = session.singleUseObjects();
+        if (!singleUseObjects.putIfAbsent(key, lifespan)) {
+            return false;
+        }
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                singleUseObjects.remove(key);
+            }
+        });
+        return true;
+    }
+
+    static void release(KeycloakSession session, String phoneNumber, TokenCodeType tokenCodeType) {
+        session.singleUseObjects().remove(key(session, phoneNumber, tokenCodeType));
+    }
+}
@@ -0,0 +1,147 @@
+package cc.coopersoft.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+  private static final long LONG_OPEN = 60_000;
+  private static final long SHORT_OPEN = 50;
+
+  private static CircuitBreaker breaker(long openDuration, long latencyThreshold) {
+    return new CircuitBreaker("test", new CircuitBreaker.Settings(4, 4, 0.5, latencyThreshold, 1.0, openDuration, 2));
+  }
+
+  private static CircuitBreaker halfOpen() throws InterruptedException {
+    CircuitBreaker breaker = breaker(SHORT_OPEN, 0);
+    record(breaker, true, true, true, true);
+    Thread.sleep(SHORT_OPEN + 20);
+    return breaker;
+  }
+
+  private static void record(CircuitBreaker breaker, boolean... failures) {
+    for (boolean failed : failures) {
+      CircuitBreaker.Call call = breaker.tryAcquire();
+      assertNotNull(call);
+      if (failed) {
+        call.failure();
+      } else {
+        call.success();
+      }
+    }
+  }
+
+  @Test
+  void staysClosedBelowMinimumCalls() {
+    CircuitBreaker breaker = breaker(LONG_OPEN, 0);
+    record(breaker, true, true, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void opensAtFailureRateAndRejects() {
+    CircuitBreaker breaker = breaker(LONG_OPEN, 0);
+    record(breaker, false, true, false, true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertNull(breaker.tryAcquire());
+  }
+
+  @Test
+  void staysClosedBelowFailureRate() {
+    CircuitBreaker breaker = breaker(LONG_OPEN, 0);
+    record(breaker, false, true, false, false, false, false, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void failuresSlideOutOfTheWindow() {
+    CircuitBreaker breaker = breaker(LONG_OPEN, 0);
+    // the window holds four calls: the first failure is gone when the second one is recorded
+    record(breaker, true, false, false, false, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    record(breaker, true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  void opensOnSlowCalls() throws InterruptedException {
+    CircuitBreaker breaker = breaker(LONG_OPEN, 20);
+    for (int i = 0; i < 4; i++) {
+      CircuitBreaker.Call call = breaker.tryAcquire();
+      assertNotNull(call);
+      Thread.sleep(30);
+      call.success();
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  void halfOpenLetsOneProbeThroughAtATime() throws InterruptedException {
+    CircuitBreaker breaker = halfOpen();
+
+    CircuitBreaker.Call probe = breaker.tryAcquire();
+    assertNotNull(probe);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertNull(breaker.tryAcquire());
+
+    probe.success();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.tryAcquire().success();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void failedProbeOpensAgain() throws InterruptedException {
+    CircuitBreaker breaker = halfOpen();
+
+    breaker.tryAcquire().success();
+    breaker.tryAcquire().failure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  void ignoredProbeGivesThePermitBack() throws InterruptedException {
+    CircuitBreaker breaker = halfOpen();
+
+    breaker.tryAcquire().ignore();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertNotNull(breaker.tryAcquire());
+  }
+
+  @Test
+  void onlyTheFirstOutcomeCounts() {
+    CircuitBreaker breaker = breaker(LONG_OPEN, 0);
+    for (int i = 0; i < 4; i++) {
+      CircuitBreaker.Call call = breaker.tryAcquire();
+      call.success();
+      call.failure();
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void callsAdmittedBeforeOpeningAreNotCounted() throws InterruptedException {
+    CircuitBreaker breaker = breaker(SHORT_OPEN, 0);
+    CircuitBreaker.Call late = breaker.tryAcquire();
+    record(breaker, true, true, true, true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    late.failure();
+    Thread.sleep(SHORT_OPEN + 20);
+    CircuitBreaker.Call probe = breaker.tryAcquire();
+    assertNotNull(probe);
+    probe.success();
+    breaker.tryAcquire().success();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  void neverOpenOnlyCounts() {
+    CircuitBreaker breaker = new CircuitBreaker("test", CircuitBreaker.Settings.NEVER_OPEN);
+    record(breaker, true, true, true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+}
@@ -0,0 +1,55 @@
+package cc.coopersoft.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class LruCacheTest {
+
+  @Test
+  void evictsTheLeastRecentlyUsed() {
+    LruCache<String, String> cache = new LruCache<>(2, 0);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.get("a");
+    cache.put("c", "3");
+
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("3", cache.get("c"));
+    assertEquals(1, cache.evictionCount());
+  }
+
+  @Test
+  void expiresAfterTtl() throws InterruptedException {
+    LruCache<String, String> cache = new LruCache<>(16, 20);
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+    Thread.sleep(30);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void loaderResultIsCachedUnlessNull() {
+    LruCache<String, String> cache = new LruCache<>(16, 0);
+    assertNull(cache.get("a", key -> null));
+    assertEquals("1", cache.get("a", key -> "1"));
+    assertEquals("1", cache.get("a", key -> "2"));
+    assertEquals(1, cache.hitCount());
+    assertEquals(2, cache.missCount());
+  }
+
+  @Test
+  void removesMatchingEntries() {
+    LruCache<String, Integer> cache = new LruCache<>(64, 0);
+    for (int i = 0; i < 10; i++) {
+      cache.put("key" + i, i);
+    }
+    cache.removeIf((key, value) -> value % 2 == 0);
+    assertEquals(5, cache.size());
+    assertNull(cache.get("key4"));
+    assertEquals(5, cache.get("key5"));
+  }
+}
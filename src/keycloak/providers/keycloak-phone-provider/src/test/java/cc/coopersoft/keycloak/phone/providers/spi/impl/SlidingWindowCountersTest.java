@@ -0,0 +1,69 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class SlidingWindowCountersTest {
+
+    private static void record(SlidingWindowCounters counters, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            counters.record(key);
+        }
+    }
+
+    @Test
+    void countsPerKey() {
+        SlidingWindowCounters counters = new SlidingWindowCounters(60_000, 100);
+        record(counters, "a", 3);
+        record(counters, "b", 1);
+        assertEquals(3, counters.count("a"));
+        assertEquals(1, counters.count("b"));
+        assertEquals(0, counters.count("c"));
+    }
+
+    @Test
+    void growsPastItsInitialCapacity() {
+        SlidingWindowCounters counters = new SlidingWindowCounters(60_000, 100);
+        record(counters, "a", 37);
+        assertEquals(37, counters.count("a"));
+    }
+
+    @Test
+    void saturatesAtMaxEvents() {
+        SlidingWindowCounters counters = new SlidingWindowCounters(60_000, 10);
+        record(counters, "a", 10);
+        assertEquals(10, counters.count("a"));
+        record(counters, "a", 25);
+        assertEquals(10, counters.count("a"));
+    }
+
+    @Test
+    void forgetsEventsOutsideTheWindow() throws InterruptedException {
+        SlidingWindowCounters counters = new SlidingWindowCounters(50, 100);
+        record(counters, "a", 5);
+        Thread.sleep(70);
+        assertEquals(0, counters.count("a"));
+        record(counters, "a", 2);
+        assertEquals(2, counters.count("a"));
+    }
+
+    @Test
+    void growsWhileWrapped() throws InterruptedException {
+        SlidingWindowCounters counters = new SlidingWindowCounters(50, 100);
+        // the evicted events move the head, the next ones wrap around before the ring grows
+        record(counters, "a", 3);
+        Thread.sleep(70);
+        record(counters, "a", 9);
+        assertEquals(9, counters.count("a"));
+    }
+
+    @Test
+    void saturatedRingForgetsAfterTheWindow() throws InterruptedException {
+        SlidingWindowCounters counters = new SlidingWindowCounters(50, 4);
+        record(counters, "a", 9);
+        assertEquals(4, counters.count("a"));
+        Thread.sleep(70);
+        assertEquals(0, counters.count("a"));
+    }
+}
@@ -0,0 +1,103 @@
+package cc.coopersoft.keycloak.phone.providers.spi.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class TokenCodeRingTest {
+
+    @Test
+    void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(4, new TokenCodeRing(1).capacity());
+        assertEquals(4, new TokenCodeRing(4).capacity());
+        assertEquals(8, new TokenCodeRing(5).capacity());
+        assertEquals(8, new TokenCodeRing(8).capacity());
+        assertEquals(1024, new TokenCodeRing(1000).capacity());
+    }
+
+    @Test
+    void rejectsWhenFullAndReturnsNullWhenEmpty() {
+        TokenCodeRing ring = new TokenCodeRing(4);
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer("code" + i));
+        }
+        assertFalse(ring.offer("code4"));
+        assertEquals(4, ring.size());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals("code" + i, ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    void keepsOrderAcrossWrapArounds() {
+        TokenCodeRing ring = new TokenCodeRing(4);
+        int polled = 0;
+        // three in, three out: the positions run far past the capacity
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ring.offer(Integer.toString(i)));
+            if (i % 3 == 2) {
+                assertEquals(Integer.toString(polled++), ring.poll());
+                assertEquals(Integer.toString(polled++), ring.poll());
+                assertEquals(Integer.toString(polled++), ring.poll());
+            }
+        }
+        String code;
+        while ((code = ring.poll()) != null) {
+            assertEquals(Integer.toString(polled++), code);
+        }
+        assertEquals(100, polled);
+    }
+
+    @Test
+    void takesEveryCodeOnceUnderContention() throws InterruptedException {
+        TokenCodeRing ring = new TokenCodeRing(64);
+        int producers = 4;
+        int perProducer = 2_000;
+        Set<String> taken = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        CountDownLatch produced = new CountDownLatch(producers);
+        ExecutorService executor = Executors.newFixedThreadPool(producers * 2);
+        try {
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                executor.execute(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        String code = producer + "-" + i;
+                        while (!ring.offer(code)) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                    produced.countDown();
+                });
+                executor.execute(() -> {
+                    while (produced.getCount() > 0 || ring.size() > 0) {
+                        String code = ring.poll();
+                        if (code != null && !taken.add(code)) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(producers * perProducer, taken.size());
+    }
+}
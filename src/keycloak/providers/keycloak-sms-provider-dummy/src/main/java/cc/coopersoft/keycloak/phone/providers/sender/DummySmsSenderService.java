@@ -1,10 +1,15 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReceipt;
 import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
 import org.jboss.logging.Logger;
 
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 public class DummySmsSenderService extends FullSmsSenderAbstractService {
 
@@ -26,6 +31,21 @@ public class DummySmsSenderService extends FullSmsSenderAbstractService {
         }
     }
 
+    @Override
+    protected CompletionStage<DeliveryReceipt> sendMessageAsync(String phoneNumber, String message) {
+        long start = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> {
+            logger.info(String.format("To: %s >>> %s", phoneNumber, message));
+
+            // simulate a failure
+            if (new Random().nextInt(10) % 5 == 0) {
+                throw new CompletionException(new MessageSendException("Insufficient credits to send message", new Throwable("MSG0042")));
+            }
+            return new DeliveryReceipt(DeliveryReceipt.CHANNEL_SMS, UUID.randomUUID().toString(),
+                    System.currentTimeMillis() - start);
+        });
+    }
+
     @Override
     public void close() {
     }
@@ -0,0 +1,37 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import cc.coopersoft.common.CircuitBreaker;
+
+/**
+ * Circuit breakers of the WhatsApp and SMS channels, shared by the sessions of this node. A send skips a
+ * channel whose breaker is open instead of waiting on it: WhatsApp falls back to SMS right away, SMS
+ * fails fast.
+ * <p>
+ * Only faults of the channel count as failures: Twilio server errors, throttling, connection errors and
+ * WhatsApp messages whose delivery could not be confirmed. A request Twilio rejects for the recipient,
+ * or a message reported undelivered, says nothing about the channel and counts as a success.
+ */
+public class TwilioChannelBreakers {
+
+    private final CircuitBreaker whatsapp;
+    private final CircuitBreaker sms;
+
+    public TwilioChannelBreakers(CircuitBreaker.Settings settings) {
+        this.whatsapp = new CircuitBreaker("twilio-" + TwilioChannelStats.WHATSAPP, settings).registerMetrics();
+        this.sms = new CircuitBreaker("twilio-" + TwilioChannelStats.SMS, settings).registerMetrics();
+    }
+
+    /**
+     * @return the permit to record the outcome on, or null when the channel is skipped
+     */
+    public CircuitBreaker.Call whatsApp() {
+        return whatsapp.tryAcquire();
+    }
+
+    /**
+     * @return the permit to record the outcome on, or null when the channel is skipped
+     */
+    public CircuitBreaker.Call sms() {
+        return sms.tryAcquire();
+    }
+}
@@ -0,0 +1,134 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Per-channel delivery statistics for hedged sends: how often each channel confirmed first, and a
+ * sliding window of confirmation latencies used to derive the WhatsApp hedge deadline (p95). A send the
+ * channel lost adds the time it stayed unconfirmed as a lower bound of its latency.
+ */
+public class TwilioChannelStats {
+
+    private static final Logger logger = Logger.getLogger(TwilioChannelStats.class);
+
+    public static final String WHATSAPP = "whatsapp";
+    public static final String SMS = "sms";
+
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int LOG_EVERY = 100;
+
+    private final Channel whatsapp = new Channel(WHATSAPP);
+    private final Channel sms = new Channel(SMS);
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong unconfirmed = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Time to wait for a WhatsApp confirmation before firing the SMS hedge: the observed p95 clamped to
+     * [minDelay, maxDelay], or {@code initialDelay} until enough samples were collected.
+     */
+    public long hedgeDelay(TwilioHedgeConfig config) {
+        long p95 = whatsapp.percentile(0.95);
+        if (p95 < 0) {
+            return config.initialDelay();
+        }
+        return Math.max(config.minDelay(), Math.min(config.maxDelay(), p95));
+    }
+
+    public void hedged() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * Records the channel that confirmed first, {@code null} when neither did before the timeout.
+     */
+    public void won(String channel, long latency) {
+        if (channel == null) {
+            unconfirmed.incrementAndGet();
+        } else {
+            channel(channel).record(latency);
+        }
+        if (total.incrementAndGet() % LOG_EVERY == 0) {
+            logger.info(toString());
+        }
+    }
+
+    /**
+     * Records that the channel was still unconfirmed after {@code latency}, when the other channel won or
+     * the send timed out. Its real latency is at least that long; leaving it out would only keep the fast
+     * confirmations and drag the hedge deadline down.
+     */
+    public void unconfirmedAfter(String channel, long latency) {
+        channel(channel).sample(latency);
+    }
+
+    public long getWins(String channel) {
+        return channel(channel).wins.get();
+    }
+
+    public long getPercentile(String channel, double percentile) {
+        return channel(channel).percentile(percentile);
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getUnconfirmed() {
+        return unconfirmed.get();
+    }
+
+    private Channel channel(String name) {
+        return SMS.equals(name) ? sms : whatsapp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Twilio hedged sends: %d total, %d hedged, %d unconfirmed; %s; %s",
+                total.get(), hedges.get(), unconfirmed.get(), whatsapp, sms);
+    }
+
+    private static class Channel {
+        private final String name;
+        private final AtomicLong wins = new AtomicLong();
+        private final long[] latencies = new long[WINDOW];
+        private int next;
+        private int size;
+
+        Channel(String name) {
+            this.name = name;
+        }
+
+        void record(long latency) {
+            wins.incrementAndGet();
+            sample(latency);
+        }
+
+        synchronized void sample(long latency) {
+            latencies[next] = latency;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+        }
+
+        /**
+         * @return the percentile in milliseconds, -1 when there are not enough samples
+         */
+        synchronized long percentile(double percentile) {
+            if (size < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(percentile * size) - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d wins, p50 %dms, p95 %dms", name, wins.get(), percentile(0.5), percentile(0.95));
+        }
+    }
+}
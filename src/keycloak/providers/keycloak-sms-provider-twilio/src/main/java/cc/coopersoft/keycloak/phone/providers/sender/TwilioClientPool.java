@@ -0,0 +1,82 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.jboss.logging.Logger;
+
+import com.twilio.http.NetworkHttpClient;
+import com.twilio.http.TwilioRestClient;
+import com.twilio.rest.api.v2010.Account;
+
+/**
+ * One Twilio REST client per provider factory, backed by a pooled keep-alive connection manager.
+ * <p>
+ * Replaces the global {@code Twilio.init} singleton, so sends reuse warm TLS connections instead of
+ * re-initializing the SDK and opening a new connection per message.
+ */
+public class TwilioClientPool {
+
+    private static final Logger logger = Logger.getLogger(TwilioClientPool.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final TwilioRestClient client;
+    private final String accountSID;
+
+    public TwilioClientPool(String accountSID, String authToken, int maxConnections, int maxConnectionsPerRoute,
+            long keepAlive, int connectTimeout, int readTimeout) {
+        this.accountSID = accountSID;
+        this.connectionManager = new PoolingHttpClientConnectionManager(keepAlive, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        // stale connections are revalidated after being idle, the Twilio edge closes them silently
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> TimeUnit.SECONDS.toMillis(keepAlive))
+                .evictIdleConnections(keepAlive, TimeUnit.SECONDS)
+                .useSystemProperties();
+
+        this.client = new TwilioRestClient.Builder(accountSID, authToken)
+                .httpClient(new NetworkHttpClient(clientBuilder))
+                .build();
+
+        logger.info(String.format("Twilio client pool created, max %d connections (%d per route), keep-alive %d seconds",
+                maxConnections, maxConnectionsPerRoute, keepAlive));
+    }
+
+    public TwilioRestClient getClient() {
+        return client;
+    }
+
+    /**
+     * Opens {@code connections} TLS connections in the background so the first OTP does not pay the handshake.
+     */
+    public void warmUp(int connections) {
+        for (int i = 0; i < connections; i++) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Account.fetcher(accountSID).fetch(client);
+                } catch (RuntimeException e) {
+                    logger.warn("Twilio connection warm-up failed: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    public void close() {
+        connectionManager.shutdown();
+    }
+}
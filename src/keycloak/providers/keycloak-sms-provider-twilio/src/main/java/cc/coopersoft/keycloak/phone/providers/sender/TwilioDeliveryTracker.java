@@ -0,0 +1,353 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import cc.coopersoft.keycloak.phone.providers.sender.jpa.TwilioDeliveryState;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+/**
+ * Tracks WhatsApp messages sent with a status callback, and falls back to SMS when Twilio
+ * reports them as failed/undelivered or when no delivery confirmation arrives before the deadline.
+ * <p>
+ * Every status change is written to TWILIO_MESSAGE_DELIVERY_STATE so that a callback received by another
+ * cluster node is still seen when the deadline expires on the sending node. The row also keeps what the
+ * fallback needs until the delivery is settled: a failure reported to another node is handled there, and
+ * the fallbacks of a node that went away are resumed by the next node that starts. Whoever sends a
+ * fallback first claims it on the locked row, so it goes out once.
+ */
+public class TwilioDeliveryTracker {
+
+    private static final Logger logger = Logger.getLogger(TwilioDeliveryTracker.class);
+
+    public static final String STATUS_FALLBACK = "fallback";
+
+    @FunctionalInterface
+    public interface SmsFallback {
+        /**
+         * @return the SID of the fallback SMS
+         */
+        String send(String phoneNumber, String message) throws Exception;
+    }
+
+    private final Map<String, PendingDelivery> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final long deadline;
+    private final SmsFallback fallback;
+
+    private KeycloakSessionFactory sessionFactory;
+
+    public TwilioDeliveryTracker(long deadline, SmsFallback fallback) {
+        this.deadline = deadline;
+        this.fallback = fallback;
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "twilio-delivery-tracker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setSessionFactory(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Starts tracking an accepted WhatsApp message.
+     *
+     * @param fallbackAllowed whether an SMS may be sent to this number when WhatsApp fails
+     */
+    public void track(String realmId, String messageSid, String phoneNumber, String message, boolean fallbackAllowed) {
+        PendingDelivery delivery = new PendingDelivery(messageSid, new Fallback(phoneNumber, message, fallbackAllowed));
+        Date deadlineAt = new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(deadline));
+        pending.put(messageSid, delivery);
+        delivery.deadlineTask = scheduler.schedule(() -> onDeadline(delivery), deadline, TimeUnit.SECONDS);
+        scheduler.execute(() -> store(messageSid, state -> {
+            state.setRealmId(realmId);
+            state.setPhoneNumber(phoneNumber);
+            state.setChannel("whatsapp");
+            if (state.getStatus() == null) {
+                state.setStatus("queued");
+            }
+            if (!delivery.settled.get()) {
+                state.setFallbackMessage(message);
+                state.setFallbackAllowed(fallbackAllowed);
+                state.setDeadlineAt(deadlineAt);
+            }
+        }));
+    }
+
+    /**
+     * Resumes the fallbacks that were pending when their node went away, their deadline runs on here.
+     * Fallbacks overdue by more than another deadline are dropped, the code is stale by then.
+     */
+    public void resume() {
+        if (sessionFactory == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<TwilioDeliveryState> states = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                        .createNamedQuery("twilioPendingFallbacks", TwilioDeliveryState.class)
+                        .getResultList());
+        int resumed = 0;
+        for (TwilioDeliveryState state : states) {
+            long deadlineAt = state.getDeadlineAt() == null ? now : state.getDeadlineAt().getTime();
+            if (now > deadlineAt + TimeUnit.SECONDS.toMillis(deadline)) {
+                logger.warn(String.format("Dropping stale SMS fallback of WhatsApp message %s", state.getMessageSid()));
+                scheduler.execute(() -> clearFallback(state.getMessageSid()));
+                continue;
+            }
+            scheduler.schedule(() -> onResumedDeadline(state.getMessageSid()), Math.max(0, deadlineAt - now), TimeUnit.MILLISECONDS);
+            resumed++;
+        }
+        if (resumed > 0) {
+            logger.info(String.format("Resumed %d pending WhatsApp SMS fallbacks", resumed));
+        }
+    }
+
+    /**
+     * Handles a Twilio status callback.
+     */
+    public void onStatus(String messageSid, String status, String errorCode) {
+        logger.info(String.format("WhatsApp message %s status callback: %s%s", messageSid, status,
+                errorCode == null ? "" : " (error " + errorCode + ")"));
+
+        scheduler.execute(() -> store(messageSid, state -> {
+            // a late "sent" must not overwrite "delivered"/"failed"
+            if (state.getStatus() == null || !isFinal(state.getStatus())) {
+                state.setStatus(status);
+            }
+            if (errorCode != null) {
+                state.setErrorCode(errorCode);
+            }
+            if (isDelivered(status)) {
+                state.setFallbackMessage(null);
+            }
+        }));
+
+        PendingDelivery delivery = pending.get(messageSid);
+        if (delivery == null) {
+            if (isFailed(status)) {
+                // sent by another node, which may be gone: the persisted fallback is sent from here unless claimed
+                scheduler.execute(() -> fallback(messageSid, null, "status " + status));
+            }
+            return;
+        }
+        if (isDelivered(status)) {
+            if (delivery.settle()) {
+                pending.remove(messageSid);
+                logger.info(String.format("WhatsApp message %s confirmed %s", messageSid, status));
+            }
+        } else if (isFailed(status)) {
+            if (delivery.settle()) {
+                pending.remove(messageSid);
+                scheduler.execute(() -> fallback(messageSid, delivery.fallback, "status " + status));
+            }
+        }
+    }
+
+    private void onDeadline(PendingDelivery delivery) {
+        if (delivery.settled.get()) {
+            return;
+        }
+        // the callback may have been received by another node
+        String storedStatus = loadStatus(delivery.messageSid);
+        if (storedStatus != null && isDelivered(storedStatus)) {
+            if (delivery.settle()) {
+                pending.remove(delivery.messageSid);
+                logger.info(String.format("WhatsApp message %s confirmed %s (persisted)", delivery.messageSid, storedStatus));
+                clearFallback(delivery.messageSid);
+            }
+            return;
+        }
+        if (delivery.settle()) {
+            pending.remove(delivery.messageSid);
+            fallback(delivery.messageSid, delivery.fallback, String.format("no delivery confirmation within %d seconds", deadline));
+        }
+    }
+
+    private void onResumedDeadline(String messageSid) {
+        if (pending.containsKey(messageSid)) {
+            return;
+        }
+        String storedStatus = loadStatus(messageSid);
+        if (storedStatus != null && isDelivered(storedStatus)) {
+            clearFallback(messageSid);
+            return;
+        }
+        fallback(messageSid, null, "no delivery confirmation before the deadline of a previous node");
+    }
+
+    /**
+     * @param local what this node kept for the fallback, null if it did not send the message
+     */
+    private void fallback(String messageSid, Fallback local, String reason) {
+        Fallback claimed = claim(messageSid, local);
+        if (claimed == null) {
+            logger.debug(String.format("Fallback of WhatsApp message %s was already settled", messageSid));
+            return;
+        }
+        if (!claimed.allowed()) {
+            logger.warn(String.format("WhatsApp message %s to %s not delivered (%s), SMS fallback not supported for this number",
+                    messageSid, claimed.phoneNumber(), reason));
+            return;
+        }
+        logger.warn(String.format("WhatsApp message %s not delivered (%s), falling back to SMS", messageSid, reason));
+        try {
+            String smsSid = fallback.send(claimed.phoneNumber(), claimed.message());
+            logger.info("SMS fallback sent successfully, SID: " + smsSid);
+            store(messageSid, state -> {
+                state.setFallbackSid(smsSid);
+                if (!isFinal(state.getStatus())) {
+                    state.setStatus(STATUS_FALLBACK);
+                }
+            });
+        } catch (Exception e) {
+            logger.error(String.format("SMS fallback for WhatsApp message %s failed: %s", messageSid, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Takes the fallback off the locked row, so that no other node sends it.
+     *
+     * @return the fallback to send, null when it was settled already
+     */
+    private Fallback claim(String messageSid, Fallback local) {
+        if (sessionFactory == null) {
+            return local;
+        }
+        try {
+            return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+                TwilioDeliveryState state = em.find(TwilioDeliveryState.class, messageSid, LockModeType.PESSIMISTIC_WRITE);
+                Date now = new Date();
+                if (state == null) {
+                    if (local == null) {
+                        return null;
+                    }
+                    // tracking was not stored yet, the row keeps it from storing a fallback that is gone
+                    state = new TwilioDeliveryState();
+                    state.setMessageSid(messageSid);
+                    state.setPhoneNumber(local.phoneNumber());
+                    state.setChannel("whatsapp");
+                    state.setStatus(STATUS_FALLBACK);
+                    state.setCreatedAt(now);
+                    state.setUpdatedAt(now);
+                    em.persist(state);
+                    return local;
+                }
+                if (state.getFallbackMessage() == null) {
+                    return null;
+                }
+                Fallback claimed = new Fallback(state.getPhoneNumber(), state.getFallbackMessage(),
+                        Boolean.TRUE.equals(state.getFallbackAllowed()));
+                state.setFallbackMessage(null);
+                state.setUpdatedAt(now);
+                return claimed;
+            });
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Failed to claim the fallback of %s: %s", messageSid, e.getMessage()));
+            return local;
+        }
+    }
+
+    private void clearFallback(String messageSid) {
+        store(messageSid, state -> state.setFallbackMessage(null));
+    }
+
+    private void store(String messageSid, Consumer<TwilioDeliveryState> update) {
+        if (sessionFactory == null) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+                TwilioDeliveryState state = em.find(TwilioDeliveryState.class, messageSid);
+                Date now = new Date();
+                if (state == null) {
+                    state = new TwilioDeliveryState();
+                    state.setMessageSid(messageSid);
+                    state.setCreatedAt(now);
+                }
+                update.accept(state);
+                if (state.getStatus() == null) {
+                    state.setStatus("queued");
+                }
+                state.setUpdatedAt(now);
+                em.persist(state);
+            });
+        } catch (RuntimeException e) {
+            // a concurrent insert of the same SID from the callback; the in-memory state already decided
+            logger.warn(String.format("Failed to persist delivery state of %s: %s", messageSid, e.getMessage()));
+        }
+    }
+
+    private String loadStatus(String messageSid) {
+        if (sessionFactory == null) {
+            return null;
+        }
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            TwilioDeliveryState state = session.getProvider(JpaConnectionProvider.class)
+                    .getEntityManager().find(TwilioDeliveryState.class, messageSid);
+            return state == null ? null : state.getStatus();
+        });
+    }
+
+    public static boolean isDelivered(String status) {
+        return "delivered".equals(status) || "read".equals(status);
+    }
+
+    public static boolean isFailed(String status) {
+        return "failed".equals(status) || "undelivered".equals(status);
+    }
+
+    private static boolean isFinal(String status) {
+        return isDelivered(status) || isFailed(status);
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        if (!pending.isEmpty()) {
+            logger.warn(String.format("%d WhatsApp deliveries still unconfirmed at shutdown", pending.size()));
+        }
+    }
+
+    private record Fallback(String phoneNumber, String message, boolean allowed) {
+    }
+
+    private static class PendingDelivery {
+        private final String messageSid;
+        private final Fallback fallback;
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> deadlineTask;
+
+        PendingDelivery(String messageSid, Fallback fallback) {
+            this.messageSid = messageSid;
+            this.fallback = fallback;
+        }
+
+        boolean settle() {
+            if (!settled.compareAndSet(false, true)) {
+                return false;
+            }
+            if (deadlineTask != null) {
+                deadlineTask.cancel(false);
+            }
+            return true;
+        }
+    }
+}
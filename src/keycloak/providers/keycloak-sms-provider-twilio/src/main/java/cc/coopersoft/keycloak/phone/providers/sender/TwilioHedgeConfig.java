@@ -0,0 +1,14 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+/**
+ * Realm-level settings of the hedged WhatsApp/SMS send, all durations in milliseconds.
+ *
+ * @param initialDelay hedge deadline used until enough WhatsApp confirmations were observed
+ * @param minDelay     lower bound of the p95-based hedge deadline
+ * @param maxDelay     upper bound of the p95-based hedge deadline
+ * @param timeout      how long to wait for any channel to confirm before giving up
+ * @param pollInterval interval before the first delivery status check, doubled after each check up to
+ *                     2 seconds
+ */
+public record TwilioHedgeConfig(long initialDelay, long minDelay, long maxDelay, long timeout, long pollInterval) {
+}
@@ -4,7 +4,14 @@ import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.PostMigrationEvent;
 
+import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.type.PhoneNumber;
+
+import cc.coopersoft.common.CircuitBreaker;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageServiceFaultException;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
 import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderServiceProviderFactory;
 
@@ -19,15 +26,50 @@ public class TwilioMessageSenderServiceProviderFactory implements MessageSenderS
     private String whatsappFromNumber;
     private String whatsappAppHash;
     private String whatsappTemplateId;
+    private String statusCallbackUrl;
+    private TwilioDeliveryTracker deliveryTracker;
+    private TwilioClientPool clientPool;
+    private int warmupConnections;
+    private Config.Scope config;
+    private final TwilioChannelStats hedgeStats = new TwilioChannelStats();
+    private TwilioChannelBreakers channelBreakers;
 
     @Override
     public MessageSenderService create(KeycloakSession session) {
-        return new TwilioSmsSenderServiceProvider(realmDisplayName, accountSID, authToken, fromNumber,
-                whatsappFromNumber, whatsappAppHash, whatsappTemplateId);
+        RealmModel realm = session.getContext().getRealm();
+        return new TwilioSmsSenderServiceProvider(realmDisplayName,
+                clientPool == null ? null : clientPool.getClient(), fromNumber,
+                whatsappFromNumber, whatsappAppHash, whatsappTemplateId, statusCallbackUrl, deliveryTracker,
+                realm == null ? null : realm.getId(), getHedgeConfig(realm), hedgeStats, channelBreakers);
+    }
+
+    /**
+     * Hedged send settings, each key can be overridden per realm with a {@code <realm name>-} prefix.
+     *
+     * @return {@code null} when hedged sending is disabled for the realm
+     */
+    private TwilioHedgeConfig getHedgeConfig(RealmModel realm) {
+        String prefix = realm == null ? "" : realm.getName() + "-";
+        Boolean hedged = config.getBoolean(prefix + "hedgedSend", null);
+        if (!(hedged == null ? config.getBoolean("hedgedSend", false) : hedged)) {
+            return null;
+        }
+        return new TwilioHedgeConfig(
+                getLongConfigValue(prefix, "hedgeInitialDelay", 5000L),
+                getLongConfigValue(prefix, "hedgeMinDelay", 2000L),
+                getLongConfigValue(prefix, "hedgeMaxDelay", 10000L),
+                getLongConfigValue(prefix, "hedgeTimeout", 16000L),
+                getLongConfigValue(prefix, "hedgePollInterval", 500L));
+    }
+
+    private long getLongConfigValue(String prefix, String key, long defaultValue) {
+        Long value = config.getLong(prefix + key);
+        return value == null ? config.getLong(key, defaultValue) : value;
     }
 
     @Override
     public void init(Config.Scope config) {
+        this.config = config;
         realmDisplayName = config.get("realmDisplayName", "Yoma");
 
         // Try both camelCase and lowercase versions of configuration keys
@@ -38,12 +80,52 @@ public class TwilioMessageSenderServiceProviderFactory implements MessageSenderS
         whatsappAppHash = getConfigValue(config, "KC_SPI_MESSAGE_SENDER_SERVICE_TWILIO_WHATSAPP_APP_HASH", "twilioWhatsappAppHash", "whatsappAppHash");
         whatsappTemplateId = getConfigValue(config, "KC_SPI_MESSAGE_SENDER_SERVICE_TWILIO_WHATSAPP_TEMPLATE_ID", "twilioWhatsappTemplateId", "whatsappTemplateId");
 
+        if (accountSID != null && authToken != null) {
+            clientPool = new TwilioClientPool(accountSID, authToken,
+                    config.getInt("httpMaxConnections", 50),
+                    config.getInt("httpMaxConnectionsPerRoute", 20),
+                    config.getLong("httpKeepAlive", 60L),
+                    config.getInt("httpConnectTimeout", 5000),
+                    config.getInt("httpReadTimeout", 15000));
+            warmupConnections = config.getInt("httpWarmupConnections", 2);
+        }
+
+        // breakers that never open still record, so the channel state stays visible when disabled
+        channelBreakers = new TwilioChannelBreakers(config.getBoolean("breakerEnabled", true)
+                ? CircuitBreaker.Settings.of(config) : CircuitBreaker.Settings.NEVER_OPEN);
+
+        // WhatsApp delivery is confirmed by Twilio status callbacks instead of polling when set,
+        // e.g. https://auth.example.com/realms/yoma/twilio/status
+        statusCallbackUrl = getConfigValue(config, "twilioStatusCallbackUrl", "statusCallbackUrl");
+        if (statusCallbackUrl != null && clientPool != null) {
+            long deliveryDeadline = config.getLong("deliveryDeadline", 30L);
+            deliveryTracker = new TwilioDeliveryTracker(deliveryDeadline, this::sendFallbackSms);
+            logger.info(String.format("WhatsApp delivery status callbacks enabled, SMS fallback deadline %d seconds", deliveryDeadline));
+        }
+
         // Log only if critical configuration is missing
         if (accountSID == null || authToken == null || fromNumber == null) {
             logger.warn("Twilio is not fully configured! Some required parameters are missing.");
         }
     }
 
+    private String sendFallbackSms(String phoneNumber, String message) throws MessageServiceFaultException {
+        CircuitBreaker.Call call = channelBreakers.sms();
+        if (call == null) {
+            throw new MessageServiceFaultException("SMS circuit breaker is open", null);
+        }
+        try {
+            String sid = Message.creator(new PhoneNumber(phoneNumber), new PhoneNumber(fromNumber), message)
+                    .create(clientPool.getClient())
+                    .getSid();
+            call.success();
+            return sid;
+        } catch (RuntimeException e) {
+            TwilioSmsSenderServiceProvider.record(call, e);
+            throw e;
+        }
+    }
+
     // Helper method to try multiple configuration keys
     private String getConfigValue(Config.Scope config, String... keys) {
         for (String key : keys) {
@@ -59,12 +141,43 @@ public class TwilioMessageSenderServiceProviderFactory implements MessageSenderS
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Nothing to do here
+        if (deliveryTracker != null) {
+            deliveryTracker.setSessionFactory(factory);
+            factory.register(event -> {
+                if (event instanceof PostMigrationEvent) {
+                    deliveryTracker.resume();
+                }
+            });
+        }
+        if (clientPool != null && warmupConnections > 0) {
+            clientPool.warmUp(warmupConnections);
+        }
     }
 
     @Override
     public void close() {
-        // Nothing to close
+        if (deliveryTracker != null) {
+            deliveryTracker.close();
+        }
+        if (clientPool != null) {
+            clientPool.close();
+        }
+    }
+
+    public TwilioDeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+
+    public TwilioChannelStats getHedgeStats() {
+        return hedgeStats;
+    }
+
+    public String getStatusCallbackUrl() {
+        return statusCallbackUrl;
+    }
+
+    String getAuthToken() {
+        return authToken;
     }
 
     @Override
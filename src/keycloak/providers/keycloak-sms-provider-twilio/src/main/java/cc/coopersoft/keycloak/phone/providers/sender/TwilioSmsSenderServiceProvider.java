@@ -1,103 +1,358 @@
 package cc.coopersoft.keycloak.phone.providers.sender;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
 import org.jboss.logging.Logger;
 
-import com.twilio.Twilio;
 import com.twilio.exception.ApiException;
+import com.twilio.http.TwilioRestClient;
 import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.rest.api.v2010.account.MessageCreator;
 import com.twilio.type.PhoneNumber;
 
+import cc.coopersoft.common.CircuitBreaker;
 import cc.coopersoft.keycloak.phone.providers.exception.MessageSendException;
+import cc.coopersoft.keycloak.phone.providers.exception.MessageServiceFaultException;
+import cc.coopersoft.keycloak.phone.providers.representations.DeliveryReceipt;
+import cc.coopersoft.keycloak.phone.providers.spi.BlockingSendExecutor;
 import cc.coopersoft.keycloak.phone.providers.spi.FullSmsSenderAbstractService;
 
 public class TwilioSmsSenderServiceProvider extends FullSmsSenderAbstractService {
 
     private static final Logger logger = Logger.getLogger(TwilioSmsSenderServiceProvider.class);
 
-    private final String accountSID;
-    private final String authToken;
+    private static final int STATUS_MAX_CHECKS = 8;
+    private static final long STATUS_CHECK_INTERVAL = 2000; // 2 seconds between checks
+
+    private static final String DELIVERY_UNCERTAIN = "WhatsApp message delivery status is uncertain after multiple checks";
+
+    private final TwilioRestClient client;
     private final String fromNumber;
     private final String whatsappFromNumber;
     private final String whatsappAppHash;
     private final String whatsappTemplateId;
     private final boolean whatsappEnabled;
-    private boolean twilioInitialized = false;
-
-    public TwilioSmsSenderServiceProvider(String realmDisplay, String accountSID, String authToken, String fromNumber,
-            String whatsappFromNumber, String whatsappAppHash, String whatsappTemplateId) {
+    private final String statusCallbackUrl;
+    private final TwilioDeliveryTracker deliveryTracker;
+    private final String realmId;
+    private final TwilioHedgeConfig hedgeConfig;
+    private final TwilioChannelStats hedgeStats;
+    private final TwilioChannelBreakers channelBreakers;
+
+    public TwilioSmsSenderServiceProvider(String realmDisplay, TwilioRestClient client, String fromNumber,
+            String whatsappFromNumber, String whatsappAppHash, String whatsappTemplateId,
+            String statusCallbackUrl, TwilioDeliveryTracker deliveryTracker, String realmId,
+            TwilioHedgeConfig hedgeConfig, TwilioChannelStats hedgeStats, TwilioChannelBreakers channelBreakers) {
         super(realmDisplay);
-        this.accountSID = accountSID;
-        this.authToken = authToken;
+        this.client = client;
+        this.hedgeConfig = hedgeConfig;
+        this.hedgeStats = hedgeStats;
+        this.channelBreakers = channelBreakers;
+        this.statusCallbackUrl = statusCallbackUrl;
+        this.deliveryTracker = deliveryTracker;
+        this.realmId = realmId;
         this.fromNumber = fromNumber;
         this.whatsappFromNumber = whatsappFromNumber;
         this.whatsappAppHash = whatsappAppHash;
         this.whatsappTemplateId = whatsappTemplateId;
         this.whatsappEnabled = whatsappFromNumber != null && !whatsappFromNumber.isEmpty();
+    }
 
-        // Verify we have required credentials
-        if (accountSID == null || accountSID.trim().isEmpty() || authToken == null || authToken.trim().isEmpty()) {
-            logger.error("Twilio credentials missing! accountSID or authToken is null or empty.");
-            return; // Skip initialization to prevent further errors
-        }
+    /**
+     * Sends a message without a token code, the WhatsApp template cannot carry it.
+     */
+    @Override
+    public void sendMessage(String phoneNumber, String message) throws MessageSendException {
+        sendCodeMessage(phoneNumber, null, message);
+    }
 
-        if (fromNumber == null || fromNumber.trim().isEmpty()) {
-            logger.error("Twilio SMS number is missing! SMS sending will fail.");
-        }
+    @Override
+    protected void sendCodeMessage(String phoneNumber, String code, String message) throws MessageSendException {
+        sendWithReceipt(phoneNumber, code, message);
+    }
 
-        // Initialize Twilio client
+    private DeliveryReceipt sendWithReceipt(String phoneNumber, String code, String message) throws MessageSendException {
         try {
-            // Reinitialize Twilio with each instance to ensure correct credentials
-            Twilio.init(accountSID, authToken);
-            twilioInitialized = true;
-        } catch (Exception e) {
-            logger.error("Failed to initialize Twilio client: " + e.getMessage(), e);
+            return send(phoneNumber, code, message, System.currentTimeMillis());
+        } catch (MessageSendException e) {
+            throw classify(e);
         }
     }
 
-    @Override
-    public void sendMessage(String phoneNumber, String message) throws MessageSendException {
-        // Validate configuration before sending
-        if (!twilioInitialized) {
+    private DeliveryReceipt send(String phoneNumber, String code, String message, long start) throws MessageSendException {
+        // Validate configuration before sending, the shared client is only built when credentials are set
+        if (client == null) {
             String errorMsg = "Cannot send message: Twilio client not properly initialized";
             logger.error(errorMsg);
-            throw new MessageSendException(errorMsg, new Throwable("MSG0004"));
+            throw new MessageServiceFaultException(errorMsg, new Throwable("MSG0004"));
         }
 
-        // Reinitialize Twilio to ensure credentials are set (safety measure)
-        try {
-            Twilio.init(accountSID, authToken);
-        } catch (Exception e) {
-            logger.error("Failed to reinitialize Twilio client before sending: " + e.getMessage(), e);
-            throw new MessageSendException("Failed to initialize Twilio client: " + e.getMessage(), e);
+        if (whatsappEnabled && hedgeConfig != null) {
+            return sendHedged(phoneNumber, code, message, start);
         }
 
         // Try WhatsApp first if enabled
-        if (whatsappEnabled) {
+        CircuitBreaker.Call whatsappCall = whatsappEnabled ? acquireWhatsApp() : null;
+        if (whatsappCall != null) {
             try {
-                sendWhatsAppMessage(phoneNumber, message);
+                String whatsappSid = sendWhatsAppMessage(phoneNumber, code, message);
+                whatsappCall.success();
                 logger.info("WhatsApp delivery successful to: " + phoneNumber);
-                return; // If WhatsApp succeeds, don't attempt SMS
+                // If WhatsApp succeeds, don't attempt SMS
+                return new DeliveryReceipt(DeliveryReceipt.CHANNEL_WHATSAPP, whatsappSid, System.currentTimeMillis() - start);
             } catch (Exception e) {
+                record(whatsappCall, e);
                 logger.warn("WhatsApp message failed, falling back to SMS: " + e.getMessage());
                 // Continue to SMS fallback
             }
         }
 
         // SMS as primary or fallback
+        return smsReceipt(sendSmsMessage(phoneNumber, message), start);
+    }
+
+    private static DeliveryReceipt smsReceipt(String smsSid, long start) {
+        return new DeliveryReceipt(DeliveryReceipt.CHANNEL_SMS, smsSid, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    protected CompletionStage<DeliveryReceipt> sendMessageAsync(String phoneNumber, String message) {
+        return sendCodeMessageAsync(phoneNumber, null, message);
+    }
+
+    /**
+     * Same channel choice as {@link #sendCodeMessage(String, String, String)}, with the Twilio calls and the
+     * WhatsApp status polling running on Twilio's executor instead of the calling thread. The hedged send
+     * polls and sleeps, it runs on the {@link BlockingSendExecutor} instead.
+     * <p>
+     * Cancelling the returned stage stops the status polling and skips an SMS fallback not sent yet.
+     */
+    @Override
+    protected CompletionStage<DeliveryReceipt> sendCodeMessageAsync(String phoneNumber, String code, String message) {
+        if (client == null || (whatsappEnabled && hedgeConfig != null)) {
+            return BlockingSendExecutor.submit(() -> sendWithReceipt(phoneNumber, code, message));
+        }
+
+        long start = System.currentTimeMillis();
+        CompletableFuture<DeliveryReceipt> result = new CompletableFuture<>();
+        BooleanSupplier cancelled = result::isDone;
+        CircuitBreaker.Call whatsappCall = whatsappEnabled ? acquireWhatsApp() : null;
+        CompletableFuture<DeliveryReceipt> receipt;
+        if (whatsappCall == null) {
+            receipt = sendSmsMessageAsync(phoneNumber, message, start);
+        } else {
+            receipt = sendWhatsAppMessageAsync(phoneNumber, code, message, start, cancelled)
+                    .whenComplete((ignored, error) -> record(whatsappCall, error))
+                    .exceptionallyCompose(e -> {
+                        if (cancelled.getAsBoolean()) {
+                            logger.info("WhatsApp message to " + phoneNumber + " was given up, not falling back to SMS");
+                            return CompletableFuture.failedFuture(e);
+                        }
+                        logger.warn("WhatsApp message failed, falling back to SMS: " + unwrap(e).getMessage());
+                        return sendSmsMessageAsync(phoneNumber, message, start);
+                    });
+        }
+        receipt.whenComplete((sent, error) -> {
+            if (error == null) {
+                result.complete(sent);
+            } else {
+                Throwable cause = unwrap(error);
+                result.completeExceptionally(cause instanceof MessageSendException sendException ? classify(sendException) : cause);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<DeliveryReceipt> sendSmsMessageAsync(String phoneNumber, String message, long start) {
+        if (!isSmsSupported(phoneNumber)) {
+            logger.error("Phone number must start with +27");
+            return CompletableFuture.failedFuture(new MessageSendException("We couldn't find you on WhatsApp, and we don't currently support sending SMS's to your country. Please use a WhatsApp registered number, or an email address.", null));
+        }
+        CircuitBreaker.Call smsCall;
+        try {
+            smsCall = acquireSms();
+        } catch (MessageSendException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return Message.creator(new PhoneNumber(phoneNumber), new PhoneNumber(fromNumber), message)
+                .createAsync(client)
+                .whenComplete((response, error) -> record(smsCall, error))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        logger.error("Twilio exception sending SMS: " + cause.getMessage(), cause);
+                        throw new CompletionException(new MessageSendException(cause.getMessage(), cause));
+                    }
+                    logger.info("SMS sent successfully, SID: " + response.getSid());
+                    return new DeliveryReceipt(DeliveryReceipt.CHANNEL_SMS, response.getSid(),
+                            System.currentTimeMillis() - start);
+                });
+    }
+
+    private CompletableFuture<DeliveryReceipt> sendWhatsAppMessageAsync(String phoneNumber, String code, String message, long start,
+                                                                        BooleanSupplier cancelled) {
+        CompletableFuture<Message> created;
+        try {
+            created = whatsAppCreator(phoneNumber, code, message, deliveryTracker != null).createAsync(client);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(whatsAppException(e));
+        }
+        return created
+                .handle((response, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        throw new CompletionException(whatsAppException(
+                                cause instanceof Exception exception ? exception : new RuntimeException(cause)));
+                    }
+                    logger.info("WhatsApp message sent with SID: " + response.getSid());
+                    return response.getSid();
+                })
+                .thenCompose(messageSid -> {
+                    if (deliveryTracker != null) {
+                        // Delivery is confirmed by status callback, SMS fallback is triggered asynchronously
+                        deliveryTracker.track(realmId, messageSid, phoneNumber, message, isSmsSupported(phoneNumber));
+                        return CompletableFuture.completedFuture(messageSid);
+                    }
+                    return awaitDeliveryAsync(messageSid, 0, cancelled).thenApply(ignored -> messageSid);
+                })
+                .thenApply(messageSid -> new DeliveryReceipt(DeliveryReceipt.CHANNEL_WHATSAPP, messageSid,
+                        System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Polls the status like {@link #checkMessageDeliveryStatus(String)}, waiting between checks with a delayed
+     * executor instead of sleeping.
+     */
+    private CompletableFuture<Void> awaitDeliveryAsync(String messageSid, int attempt, BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            return CompletableFuture.failedFuture(new MessageSendException("WhatsApp delivery check was given up", null));
+        }
+        if (attempt >= STATUS_MAX_CHECKS) {
+            logger.warn("Could not confirm WhatsApp message delivery after " + STATUS_MAX_CHECKS + " attempts");
+            return CompletableFuture.failedFuture(new MessageSendException(DELIVERY_UNCERTAIN, null));
+        }
+        CompletableFuture<Message> fetched = attempt == 0
+                ? Message.fetcher(messageSid).fetchAsync(client)
+                : CompletableFuture.runAsync(() -> {
+                }, CompletableFuture.delayedExecutor(STATUS_CHECK_INTERVAL, TimeUnit.MILLISECONDS))
+                        .thenCompose(ignored -> Message.fetcher(messageSid).fetchAsync(client));
+        return fetched
+                .handle((response, error) -> {
+                    if (error != null) {
+                        logger.error("Error checking WhatsApp message status: " + unwrap(error).getMessage());
+                        return null;
+                    }
+                    String status = response.getStatus().toString();
+                    logger.info("WhatsApp message " + messageSid + " status: " + status);
+                    return status;
+                })
+                .thenCompose(status -> {
+                    if (TwilioDeliveryTracker.isDelivered(status)) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if (TwilioDeliveryTracker.isFailed(status)) {
+                        return CompletableFuture.failedFuture(
+                                new MessageSendException("WhatsApp message delivery failed. Status: " + status, null));
+                    }
+                    return awaitDeliveryAsync(messageSid, attempt + 1, cancelled);
+                });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * @return the WhatsApp permit, null when its breaker is open and the message goes out by SMS
+     */
+    private CircuitBreaker.Call acquireWhatsApp() {
+        CircuitBreaker.Call call = channelBreakers.whatsApp();
+        if (call == null) {
+            logger.warn("WhatsApp circuit breaker is open, sending by SMS");
+        }
+        return call;
+    }
+
+    private CircuitBreaker.Call acquireSms() throws MessageSendException {
+        CircuitBreaker.Call call = channelBreakers.sms();
+        if (call == null) {
+            logger.warn("SMS circuit breaker is open, rejecting message");
+            throw new MessageServiceFaultException("SMS delivery is temporarily unavailable, please try again shortly.", null);
+        }
+        return call;
+    }
+
+    static void record(CircuitBreaker.Call call, Throwable error) {
+        if (error != null && isChannelFault(unwrap(error))) {
+            call.failure();
+        } else {
+            call.success();
+        }
+    }
+
+    /**
+     * @return the failure as a {@link MessageServiceFaultException} when Twilio rather than the recipient or
+     * the message is at fault, so that only those count towards the sender circuit breaker
+     */
+    private static MessageSendException classify(MessageSendException e) {
+        if (e instanceof MessageServiceFaultException || !isChannelFault(e)) {
+            return e;
+        }
+        return new MessageServiceFaultException(e.getMessage(), e.getCause());
+    }
+
+    /**
+     * @return false for errors caused by the recipient or the message rather than by the channel
+     */
+    private static boolean isChannelFault(Throwable error) {
+        if (error instanceof MessageServiceFaultException) {
+            return true;
+        }
+        if (error instanceof MessageSendException sendException) {
+            return sendException.getCause() == null
+                    ? DELIVERY_UNCERTAIN.equals(sendException.getMessage())
+                    : isChannelFault(sendException.getCause());
+        }
+        if (error instanceof ApiException apiException) {
+            Integer status = apiException.getStatusCode();
+            return status == null || status >= 500 || status == 429;
+        }
+        return true;
+    }
+
+    /**
+     * @return the SID of the accepted SMS
+     */
+    private String sendSmsMessage(String phoneNumber, String message) throws MessageSendException {
         try {
             // currently only South Africa is supported
-            if (!phoneNumber.startsWith("+27")) {
+            if (!isSmsSupported(phoneNumber)) {
                 logger.error("Phone number must start with +27");
                 throw new MessageSendException("We couldn't find you on WhatsApp, and we don't currently support sending SMS's to your country. Please use a WhatsApp registered number, or an email address.", null);
             }
 
-            Message message_response = Message.creator(
-                    new PhoneNumber(phoneNumber),
-                    new PhoneNumber(fromNumber),
-                    message)
-                    .create();
+            CircuitBreaker.Call smsCall = acquireSms();
+            Message message_response;
+            try {
+                message_response = Message.creator(
+                        new PhoneNumber(phoneNumber),
+                        new PhoneNumber(fromNumber),
+                        message)
+                        .create(client);
+                smsCall.success();
+            } catch (RuntimeException e) {
+                record(smsCall, e);
+                throw e;
+            }
 
             logger.info("SMS sent successfully, SID: " + message_response.getSid());
+            return message_response.getSid();
+        } catch (MessageSendException e) {
+            throw e;
         } catch (ApiException e) {
             logger.error("Twilio API exception sending SMS: " + e.getMessage() + ", Code: " + e.getCode() + ", Status: " + e.getStatusCode());
             throw new MessageSendException(e.getMessage(), e);
@@ -107,71 +362,254 @@ public class TwilioSmsSenderServiceProvider extends FullSmsSenderAbstractService
         }
     }
 
-    private void sendWhatsAppMessage(String phoneNumber, String message) throws MessageSendException {
+    private static boolean isSmsSupported(String phoneNumber) {
+        return phoneNumber.startsWith("+27");
+    }
+
+    /**
+     * @return the SID of the WhatsApp message
+     */
+    private String sendWhatsAppMessage(String phoneNumber, String code, String message) throws MessageSendException {
+        String messageSid = createWhatsAppMessage(phoneNumber, code, message, deliveryTracker != null);
+
+        if (deliveryTracker != null) {
+            // Delivery is confirmed by status callback, SMS fallback is triggered asynchronously
+            deliveryTracker.track(realmId, messageSid, phoneNumber, message, isSmsSupported(phoneNumber));
+            return messageSid;
+        }
+
+        // Poll for message status to verify delivery
+        checkMessageDeliveryStatus(messageSid);
+        return messageSid;
+    }
+
+    /**
+     * Sends the WhatsApp message and, if it is not confirmed within the p95-based hedge deadline, the SMS
+     * in parallel. Whichever channel is confirmed first wins; an accepted but unconfirmed SMS still counts
+     * as sent, as in the sequential path.
+     *
+     * @return the receipt of the channel that won
+     */
+    private DeliveryReceipt sendHedged(String phoneNumber, String code, String message, long start) throws MessageSendException {
+        boolean smsAllowed = isSmsSupported(phoneNumber);
+
+        CircuitBreaker.Call whatsappCall = acquireWhatsApp();
+        if (whatsappCall == null) {
+            return smsReceipt(sendSmsMessage(phoneNumber, message), start);
+        }
+
+        String whatsappSid;
+        try {
+            whatsappSid = createWhatsAppMessage(phoneNumber, code, message, false);
+        } catch (MessageSendException e) {
+            record(whatsappCall, e);
+            logger.warn("WhatsApp message failed, falling back to SMS: " + e.getMessage());
+            return smsReceipt(sendSmsMessage(phoneNumber, message), start);
+        }
+
         try {
-            // Ensure the WhatsApp numbers have both the "whatsapp:" prefix and "+" in the country code
-            String formattedToNumber = phoneNumber.startsWith("whatsapp:") ? phoneNumber : "whatsapp:" + phoneNumber;
-
-            // Ensure the from number has the "+" if it's missing
-            String fromNumberWithPlus = whatsappFromNumber;
-            if (!whatsappFromNumber.contains("+")) {
-                fromNumberWithPlus = whatsappFromNumber.replaceFirst("^whatsapp:", "whatsapp:+");
-                if (!fromNumberWithPlus.startsWith("whatsapp:")) {
-                    fromNumberWithPlus = "whatsapp:+" + whatsappFromNumber;
+            return awaitHedged(phoneNumber, message, start, smsAllowed, whatsappSid, whatsappCall);
+        } finally {
+            // confirmed, reported undelivered or beaten by the SMS: WhatsApp itself answered in time
+            whatsappCall.success();
+        }
+    }
+
+    private DeliveryReceipt awaitHedged(String phoneNumber, String message, long start, boolean smsAllowed, String whatsappSid,
+                                        CircuitBreaker.Call whatsappCall) throws MessageSendException {
+
+        long hedgeAt = start + hedgeStats.hedgeDelay(hedgeConfig);
+        long deadline = start + hedgeConfig.timeout();
+        String smsSid = null;
+        long smsStart = 0;
+        boolean whatsappFailed = false;
+        boolean smsFailed = false;
+        long pollInterval = hedgeConfig.pollInterval();
+
+        while (true) {
+            long now = System.currentTimeMillis();
+
+            if (!whatsappFailed) {
+                String status = fetchStatus(whatsappSid);
+                if (TwilioDeliveryTracker.isDelivered(status)) {
+                    hedgeStats.won(TwilioChannelStats.WHATSAPP, now - start);
+                    logger.info(String.format("WhatsApp message %s confirmed %s after %dms", whatsappSid, status, now - start));
+                    return new DeliveryReceipt(DeliveryReceipt.CHANNEL_WHATSAPP, whatsappSid, now - start);
+                }
+                if (TwilioDeliveryTracker.isFailed(status)) {
+                    whatsappFailed = true;
+                    if (!smsAllowed || smsFailed) {
+                        hedgeStats.won(null, 0);
+                        throw new MessageSendException("WhatsApp message delivery failed. Status: " + status, null);
+                    }
                 }
-            } else if (!whatsappFromNumber.startsWith("whatsapp:")) {
-                fromNumberWithPlus = "whatsapp:" + whatsappFromNumber;
             }
 
-            // Add the app hash to the message if available
-            String messageWithAppHash = message;
-            if (whatsappAppHash != null && !whatsappAppHash.isEmpty()) {
-                messageWithAppHash = message + "\n\n" + whatsappAppHash;
+            if (smsSid != null && !smsFailed) {
+                String status = fetchStatus(smsSid);
+                if (TwilioDeliveryTracker.isDelivered(status)) {
+                    if (!whatsappFailed) {
+                        hedgeStats.unconfirmedAfter(TwilioChannelStats.WHATSAPP, now - start);
+                    }
+                    hedgeStats.won(TwilioChannelStats.SMS, now - smsStart);
+                    logger.info(String.format("SMS %s confirmed %s after %dms (hedged)", smsSid, status, now - smsStart));
+                    return new DeliveryReceipt(DeliveryReceipt.CHANNEL_SMS, smsSid, now - start);
+                }
+                if (TwilioDeliveryTracker.isFailed(status)) {
+                    smsFailed = true;
+                    if (whatsappFailed) {
+                        hedgeStats.won(null, 0);
+                        throw new MessageSendException("SMS delivery failed. Status: " + status, null);
+                    }
+                }
             }
 
-            // Create a Message.Creator instance
-            var creator = Message.creator(
-                    new PhoneNumber(formattedToNumber),
-                    new PhoneNumber(fromNumberWithPlus),
-                    messageWithAppHash);
-
-            // Check if we should use a template
-            boolean usingTemplate = whatsappTemplateId != null && !whatsappTemplateId.isEmpty();
-            if (usingTemplate) {
-                creator.setContentSid(whatsappTemplateId);
-
-                // Extract OTP code from the message - assuming the code is 6 digits
-                String otpCode = extractOTPFromMessage(message);
-                // Properly formatted JSON with double quotes
-                creator.setContentVariables("{\"1\":\"" + otpCode + "\"}");
+            if (smsSid == null && !smsFailed && smsAllowed && (whatsappFailed || now >= hedgeAt)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // the caller gave up on the message, its code may already be cancelled
+                    hedgeStats.won(null, 0);
+                    throw new MessageSendException("Message was given up before the SMS was sent", null);
+                }
+                if (!whatsappFailed) {
+                    hedgeStats.hedged();
+                    logger.info(String.format("WhatsApp message %s not confirmed after %dms, sending SMS in parallel",
+                            whatsappSid, now - start));
+                }
+                smsStart = now;
+                try {
+                    smsSid = sendSmsMessage(phoneNumber, message);
+                } catch (MessageSendException e) {
+                    if (whatsappFailed) {
+                        hedgeStats.won(null, 0);
+                        throw e;
+                    }
+                    smsFailed = true;
+                }
             }
 
+            if (now >= deadline) {
+                if (!whatsappFailed) {
+                    hedgeStats.unconfirmedAfter(TwilioChannelStats.WHATSAPP, now - start);
+                    whatsappCall.failure();
+                }
+                break;
+            }
+
+            // back off between status checks, but wake up for the hedge and the deadline
+            long wakeUp = Math.min(now + pollInterval, deadline);
+            if (smsSid == null && !smsFailed && smsAllowed && hedgeAt > now) {
+                wakeUp = Math.min(wakeUp, hedgeAt);
+            }
+            pollInterval = Math.min(pollInterval * 2, Math.max(hedgeConfig.pollInterval(), STATUS_CHECK_INTERVAL));
+            try {
+                Thread.sleep(Math.max(0, wakeUp - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessageSendException("Interrupted while waiting for message delivery", e);
+            }
+        }
+
+        hedgeStats.won(null, 0);
+        if (smsSid != null && !smsFailed) {
+            logger.warn(String.format("Neither WhatsApp %s nor SMS %s confirmed within %dms, SMS was accepted",
+                    whatsappSid, smsSid, hedgeConfig.timeout()));
+            return smsReceipt(smsSid, start);
+        }
+        throw new MessageSendException(DELIVERY_UNCERTAIN, null);
+    }
+
+    /**
+     * @return the current status of the message, {@code null} if it could not be fetched
+     */
+    private String fetchStatus(String messageSid) {
+        try {
+            return Message.fetcher(messageSid).fetch(client).getStatus().toString();
+        } catch (ApiException e) {
+            logger.error("Error checking message status: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the SID of the accepted WhatsApp message
+     */
+    private String createWhatsAppMessage(String phoneNumber, String code, String message, boolean statusCallback) throws MessageSendException {
+        try {
             // Send the message and capture response
-            Message messageResponse = creator.create();
+            Message messageResponse = whatsAppCreator(phoneNumber, code, message, statusCallback).create(client);
             String messageSid = messageResponse.getSid();
             logger.info("WhatsApp message sent with SID: " + messageSid);
+            return messageSid;
+        } catch (Exception e) {
+            throw whatsAppException(e);
+        }
+    }
+
+    private MessageCreator whatsAppCreator(String phoneNumber, String code, String message, boolean statusCallback)
+            throws MessageSendException {
+        // Ensure the WhatsApp numbers have both the "whatsapp:" prefix and "+" in the country code
+        String formattedToNumber = phoneNumber.startsWith("whatsapp:") ? phoneNumber : "whatsapp:" + phoneNumber;
+
+        // Ensure the from number has the "+" if it's missing
+        String fromNumberWithPlus = whatsappFromNumber;
+        if (!whatsappFromNumber.contains("+")) {
+            fromNumberWithPlus = whatsappFromNumber.replaceFirst("^whatsapp:", "whatsapp:+");
+            if (!fromNumberWithPlus.startsWith("whatsapp:")) {
+                fromNumberWithPlus = "whatsapp:+" + whatsappFromNumber;
+            }
+        } else if (!whatsappFromNumber.startsWith("whatsapp:")) {
+            fromNumberWithPlus = "whatsapp:" + whatsappFromNumber;
+        }
 
-            // Poll for message status to verify delivery
-            checkMessageDeliveryStatus(messageSid);
+        // Add the app hash to the message if available
+        String messageWithAppHash = message;
+        if (whatsappAppHash != null && !whatsappAppHash.isEmpty()) {
+            messageWithAppHash = message + "\n\n" + whatsappAppHash;
+        }
 
-        } catch (ApiException e) {
+        // Create a Message.Creator instance
+        var creator = Message.creator(
+                new PhoneNumber(formattedToNumber),
+                new PhoneNumber(fromNumberWithPlus),
+                messageWithAppHash);
+
+        // Check if we should use a template
+        boolean usingTemplate = whatsappTemplateId != null && !whatsappTemplateId.isEmpty();
+        if (usingTemplate) {
+            creator.setContentSid(whatsappTemplateId);
+
+            if (code == null) {
+                throw new MessageSendException("WhatsApp template " + whatsappTemplateId + " needs a token code, the message has none", null);
+            }
+            // Properly formatted JSON with double quotes, the code alphabet is configurable
+            creator.setContentVariables("{\"1\":\"" + code.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}");
+        }
+
+        if (statusCallback) {
+            creator.setStatusCallback(statusCallbackUrl);
+        }
+
+        return creator;
+    }
+
+    private static MessageSendException whatsAppException(Exception e) {
+        if (e instanceof ApiException apiException) {
             // Common Twilio error codes for WhatsApp
-            if (e.getCode() == 20422) {
+            if (apiException.getCode() == 20422) {
                 logger.error("WhatsApp error 20422 typically means invalid number format or parameter issue. "
                         + "Make sure phone numbers include country code and WhatsApp is provisioned for this account.");
-            } else if (e.getCode() == 21211) {
+            } else if (apiException.getCode() == 21211) {
                 logger.error("WhatsApp error 21211 typically means the recipient is not a valid/verified WhatsApp user.");
-            } else if (e.getCode() == 21606) {
+            } else if (apiException.getCode() == 21606) {
                 logger.error("WhatsApp error 21606 indicates the message violates WhatsApp's policies.");
-            } else if (e.getCode() == 21610) {
+            } else if (apiException.getCode() == 21610) {
                 logger.error("WhatsApp error 21610 indicates the template hasn't been approved or doesn't exist.");
             }
 
-            throw new MessageSendException("WhatsApp error: " + e.getMessage(), e);
-        } catch (Exception e) {
-            logger.warn("WhatsApp general exception: " + e.getMessage());
-            throw new MessageSendException("WhatsApp general exception: " + e.getMessage(), e);
+            return new MessageSendException("WhatsApp error: " + e.getMessage(), e);
         }
+        logger.warn("WhatsApp general exception: " + e.getMessage());
+        return new MessageSendException("WhatsApp general exception: " + e.getMessage(), e);
     }
 
     /**
@@ -181,18 +619,15 @@ public class TwilioSmsSenderServiceProvider extends FullSmsSenderAbstractService
      * @throws MessageSendException if the message delivery fails
      */
     private void checkMessageDeliveryStatus(String messageSid) throws MessageSendException {
-        final int MAX_RETRY = 8;
-        final int RETRY_DELAY_MS = 2000; // 2 seconds between checks
-
-        for (int attempt = 0; attempt < MAX_RETRY; attempt++) {
+        for (int attempt = 0; attempt < STATUS_MAX_CHECKS; attempt++) {
             try {
                 // Add a small delay between status checks
                 if (attempt > 0) {
-                    Thread.sleep(RETRY_DELAY_MS);
+                    Thread.sleep(STATUS_CHECK_INTERVAL);
                 }
 
                 // Fetch the message status
-                Message fetchedMessage = Message.fetcher(messageSid).fetch();
+                Message fetchedMessage = Message.fetcher(messageSid).fetch(client);
                 String status = fetchedMessage.getStatus().toString();
 
                 logger.info("WhatsApp message " + messageSid + " status: " + status);
@@ -230,26 +665,8 @@ public class TwilioSmsSenderServiceProvider extends FullSmsSenderAbstractService
 
         // After all retries, if we didn't return successfully or throw a specific exception,
         // throw a general message about uncertain delivery
-        logger.warn("Could not confirm WhatsApp message delivery after " + MAX_RETRY + " attempts");
-        throw new MessageSendException("WhatsApp message delivery status is uncertain after multiple checks", null);
-    }
-
-    /**
-     * Extract the OTP code from the message. Assumes the message contains a
-     * 6-digit code.
-     *
-     * @param message The message containing the OTP
-     * @return The extracted OTP code, or "000000" if not found
-     */
-    private String extractOTPFromMessage(String message) {
-        // Simple regex to find a 6-digit code in the message
-        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("\\b\\d{6}\\b");
-        java.util.regex.Matcher matcher = pattern.matcher(message);
-        if (matcher.find()) {
-            return matcher.group(0);
-        }
-        logger.warn("Could not extract OTP code from message. Using default.");
-        return "000000"; // Default fallback if no code found
+        logger.warn("Could not confirm WhatsApp message delivery after " + STATUS_MAX_CHECKS + " attempts");
+        throw new MessageSendException(DELIVERY_UNCERTAIN, null);
     }
 
     @Override
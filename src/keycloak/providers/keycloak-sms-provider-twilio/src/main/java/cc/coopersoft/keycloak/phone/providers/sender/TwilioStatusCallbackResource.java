@@ -0,0 +1,62 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+
+import cc.coopersoft.keycloak.phone.providers.spi.MessageSenderService;
+import com.twilio.security.RequestValidator;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+
+public class TwilioStatusCallbackResource {
+
+    private static final Logger logger = Logger.getLogger(TwilioStatusCallbackResource.class);
+
+    private static final String SIGNATURE_HEADER = "X-Twilio-Signature";
+
+    private final KeycloakSession session;
+
+    public TwilioStatusCallbackResource(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @POST
+    @Path("status")
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    public Response statusCallback(MultivaluedMap<String, String> form) {
+        var factory = (TwilioMessageSenderServiceProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(MessageSenderService.class, "twilio");
+        if (factory == null || factory.getDeliveryTracker() == null) {
+            throw new NotFoundException("Twilio status callbacks are not enabled");
+        }
+
+        Map<String, String> params = new HashMap<>();
+        form.forEach((key, values) -> params.put(key, values.isEmpty() ? "" : values.get(0)));
+
+        // Twilio signs the exact callback URL we gave it, not the URL the proxy forwarded to us
+        String signature = session.getContext().getRequestHeaders().getHeaderString(SIGNATURE_HEADER);
+        if (signature == null || !new RequestValidator(factory.getAuthToken())
+                .validate(factory.getStatusCallbackUrl(), params, signature)) {
+            logger.warn("Rejected Twilio status callback with invalid signature");
+            throw new ForbiddenException("Invalid signature");
+        }
+
+        String messageSid = params.get("MessageSid");
+        String status = params.get("MessageStatus");
+        if (messageSid == null || status == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        factory.getDeliveryTracker().onStatus(messageSid, status, params.get("ErrorCode"));
+        return Response.noContent().build();
+    }
+}
@@ -0,0 +1,22 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class TwilioStatusCallbackResourceProvider implements RealmResourceProvider {
+
+    private final KeycloakSession session;
+
+    TwilioStatusCallbackResourceProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public Object getResource() {
+        return new TwilioStatusCallbackResource(session);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,35 @@
+package cc.coopersoft.keycloak.phone.providers.sender;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Exposes {@code /realms/{realm}/twilio/status} for Twilio message status callbacks.
+ */
+public class TwilioStatusCallbackResourceProviderFactory implements RealmResourceProviderFactory {
+
+    @Override
+    public String getId() {
+        return "twilio";
+    }
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new TwilioStatusCallbackResourceProvider(session);
+    }
+
+    @Override
+    public void init(Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,61 @@
+package cc.coopersoft.keycloak.phone.providers.sender.jpa;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.util.Date;
+
+@Entity
+@Data
+@Table(name = "TWILIO_MESSAGE_DELIVERY_STATE")
+@NamedQueries({
+        @NamedQuery(
+                name = "twilioPendingFallbacks",
+                query = "FROM TwilioDeliveryState s WHERE s.fallbackMessage IS NOT NULL"
+        )
+})
+public class TwilioDeliveryState {
+
+    @Id
+    @Column(name = "MESSAGE_SID")
+    private String messageSid;
+
+    @Column(name = "REALM_ID")
+    private String realmId;
+
+    @Column(name = "PHONE_NUMBER")
+    private String phoneNumber;
+
+    @Column(name = "CHANNEL")
+    private String channel;
+
+    @Column(name = "STATUS", nullable = false)
+    private String status;
+
+    @Column(name = "ERROR_CODE")
+    private String errorCode;
+
+    @Column(name = "FALLBACK_SID")
+    private String fallbackSid;
+
+    /**
+     * Body of the SMS fallback, only kept until the delivery is settled.
+     */
+    @Column(name = "FALLBACK_MESSAGE")
+    private String fallbackMessage;
+
+    @Column(name = "FALLBACK_ALLOWED")
+    private Boolean fallbackAllowed;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "DEADLINE_AT")
+    private Date deadlineAt;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED_AT", nullable = false)
+    private Date createdAt;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "UPDATED_AT", nullable = false)
+    private Date updatedAt;
+}
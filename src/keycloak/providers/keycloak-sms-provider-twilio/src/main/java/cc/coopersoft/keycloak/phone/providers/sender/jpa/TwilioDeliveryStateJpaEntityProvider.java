@@ -0,0 +1,28 @@
+package cc.coopersoft.keycloak.phone.providers.sender.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.Collections;
+import java.util.List;
+
+public class TwilioDeliveryStateJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return Collections.singletonList(TwilioDeliveryState.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/changelog/twilio-delivery-state-changelog.xml";
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getFactoryId() {
+        return "twilioDeliveryStateEntityProvider";
+    }
+}
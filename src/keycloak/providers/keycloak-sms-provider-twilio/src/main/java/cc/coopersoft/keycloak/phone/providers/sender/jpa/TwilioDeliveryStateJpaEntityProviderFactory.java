@@ -0,0 +1,32 @@
+package cc.coopersoft.keycloak.phone.providers.sender.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class TwilioDeliveryStateJpaEntityProviderFactory implements JpaEntityProviderFactory {
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return new TwilioDeliveryStateJpaEntityProvider();
+    }
+
+    @Override
+    public String getId() {
+        return "twilioDeliveryStateEntityProvider";
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+}